@@ -0,0 +1,83 @@
+
+/*
+ *  Copyright ©, 2020, Joseph E. Hand
+ *
+ *  This file is part of PhysiCalc.
+ *
+ *  PhysiCalc is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  PhysiCalc is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with PhysiCalc.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package jehand.physicalc;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.annotation.processing.SupportedOptions;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.TypeElement;
+import javax.tools.Diagnostic;
+import javax.tools.FileObject;
+import javax.tools.StandardLocation;
+import java.io.*;
+import java.util.Set;
+
+/**
+ * Compiles the text files in assets into assets/tables.bin during the build, so {@link Tables} can load them without
+ * parsing.
+ *
+ * Maven has no plugin here for running a program, so this runs as an annotation processor, with the directory of the
+ * text files given by the option physicalc.assets. See the compile-tables execution in pom.xml.
+ */
+
+@SupportedAnnotationTypes("*")
+@SupportedOptions(TableCompiler.assetsOption)
+public final class TableCompiler extends AbstractProcessor {
+
+    static final String assetsOption = "physicalc.assets";
+
+    private boolean written;
+
+    @Override
+    public SourceVersion getSupportedSourceVersion(){
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment round){
+
+        if(written) return false;
+
+        written = true;
+
+        String assets = processingEnv.getOptions().get(assetsOption);
+
+        if(assets == null){
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "No assets directory given with -A" + assetsOption);
+            return false;
+        }
+
+        try {
+            Tables tables = Tables.fromText(new File(assets));
+            FileObject file = processingEnv.getFiler().createResource(StandardLocation.CLASS_OUTPUT, "", Tables.resource.substring(1));
+
+            try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file.openOutputStream()))){
+                tables.write(out);
+            }
+        }catch(IOException | RuntimeException e){
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "Could not compile tables: " + e);
+        }
+
+        return false;
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ *  Copyright ©, 2020, Joseph E. Hand
+ *
+ *  This file is part of PhysiCalc.
+ *
+ *  PhysiCalc is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  PhysiCalc is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with PhysiCalc.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package jehand.physicalc;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the allocation profiler and writes the results as JSON, so runs of different versions
+ * can be compared.
+ *
+ * Takes the same options as JMH's own launcher. The results go to jmh-result.json unless -rf or -rff are given.
+ */
+
+public class BenchmarkMain {
+
+    public static void main(String[] args) throws Exception {
+
+        CommandLineOptions commandLine = new CommandLineOptions(args);
+
+        if(commandLine.shouldHelp() || commandLine.shouldList() || commandLine.shouldListWithParams()
+                || commandLine.shouldListProfilers() || commandLine.shouldListResultFormats()){
+            org.openjdk.jmh.Main.main(args);
+            return;
+        }
+
+        OptionsBuilder options = new OptionsBuilder();
+        options.parent(commandLine);
+        options.resultFormat(commandLine.getResultFormat().orElse(ResultFormatType.JSON));
+
+        boolean gc = commandLine.getProfilers().stream()
+                .anyMatch((p) -> p.getKlass().equals("gc") || p.getKlass().equals(GCProfiler.class.getName()));
+
+        if(!gc) options.addProfiler(GCProfiler.class);
+
+        new Runner(options.build()).run();
+    }
+}
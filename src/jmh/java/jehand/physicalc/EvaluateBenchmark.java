@@ -0,0 +1,122 @@
+/*
+ *  Copyright ©, 2020, Joseph E. Hand
+ *
+ *  This file is part of PhysiCalc.
+ *
+ *  PhysiCalc is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  PhysiCalc is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with PhysiCalc.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package jehand.physicalc;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures evaluating expressions, both flat ones and ones that read a long chain of locks.
+ */
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EvaluateBenchmark {
+
+    @State(Scope.Thread)
+    public static class Flat {
+
+        @Param({"1 2 +", "9.81+-0.02m/s^2 2.5+-0.1s ^2 * 2 /", "6.62607015E-34Js c * 500nm /", "len len * area + len / ^2"})
+        public String expression;
+
+        Session session;
+
+        Expression compiled;
+
+        @Setup
+        public void setup(){
+
+            session = new Engine().newSession();
+            session.execute("len is 3.5+-0.1m");
+            session.execute("area is 1.2+-0.05m^2");
+
+            compiled = Expression.compile(expression.split(" "));
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Deep {
+
+        @Param({"10", "1000"})
+        public int depth;
+
+        Session session;
+
+        Expression last;
+
+        @Setup
+        public void setup(){
+
+            session = new Engine().newSession();
+            session.execute("base is 1+-0.1m");
+            session.execute("lock l0 to base 2 *");
+
+            for(int n = 1; n < depth; n++){
+                session.execute("lock l" + n + " to l" + (n - 1) + " 1m +");
+            }
+
+            last = Expression.compile(new String[]{"l" + (depth - 1)});
+        }
+    }
+
+    /**
+     * Compiling and evaluating a command line, without printing the result or using the result cache.
+     */
+    @Benchmark
+    public Object flat(Flat state){
+        return state.session.prepareUncached(state.expression);
+    }
+
+    /**
+     * Repeating a command line whose result is cached, without printing it.
+     */
+    @Benchmark
+    public Object flatCached(Flat state){
+        return state.session.prepare(state.expression);
+    }
+
+    @Benchmark
+    public Quantity flatCompiled(Flat state){
+        return state.session.evaluateExpression(state.compiled);
+    }
+
+    /**
+     * Changing the label at the bottom of the chain, then evaluating the top, so every lock is evaluated again.
+     */
+    @Benchmark
+    public Quantity deepLocks(Deep state){
+
+        state.session.execute("base is 1+-0.1m");
+
+        return state.session.evaluateExpression(state.last);
+    }
+
+    /**
+     * Evaluating the top of the chain again while its result is cached.
+     */
+    @Benchmark
+    public Quantity deepLocksCached(Deep state){
+        return state.session.evaluateExpression(state.last);
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ *  Copyright ©, 2020, Joseph E. Hand
+ *
+ *  This file is part of PhysiCalc.
+ *
+ *  PhysiCalc is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  PhysiCalc is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with PhysiCalc.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package jehand.physicalc;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures converting values to strings, in their display units and in units asked for.
+ */
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FormatBenchmark {
+
+    /**
+     * A value and the units to write it in, separated by a space.
+     */
+    @Param({"9.81+-0.02m/s^2 cm/s^2", "1.5x10^3+-2*10^1kg g", "6.62607015E-34Js kJms", "3.2+-0.1kWhrs J"})
+    public String literal;
+
+    private UncertainValue value;
+
+    private String units;
+
+    @Setup
+    public void setup(){
+
+        String[] parts = literal.split(" ");
+
+        value = UncertainValue.parse(parts[0]);
+        units = parts[1];
+    }
+
+    @Benchmark
+    public String format(){
+        return value.toString();
+    }
+
+    @Benchmark
+    public String formatIn(){
+        return value.toString(units);
+    }
+}
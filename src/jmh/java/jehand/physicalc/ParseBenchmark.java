@@ -0,0 +1,93 @@
+/*
+ *  Copyright ©, 2020, Joseph E. Hand
+ *
+ *  This file is part of PhysiCalc.
+ *
+ *  PhysiCalc is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  PhysiCalc is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with PhysiCalc.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package jehand.physicalc;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Compares {@link UncertainValue#parse(String)} with the regex parser it replaced.
+ */
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ParseBenchmark {
+
+    @Param({"5", "3.14159", "-3.2E4±1.5E2", "1.5x10^3+-2*10^1kg", "9.81+-0.02m/s^2", "6.62607015E-34Js"})
+    public String literal;
+
+    @Benchmark
+    public UncertainValue lexer(){
+        return UncertainValue.parse(literal);
+    }
+
+    @Benchmark
+    public UncertainValue regex(){
+        return regexParse(literal);
+    }
+
+    private static final String parseRegex = "(-?[0-9.]+)(?:(?:[x*]10\\^|E)(-?[0-9]+))?(?:(?:\\+-|±)([0-9.]+)(?:(?:[x*]10\\^|E)(-?[0-9]+))?)?([a-zA-Z0-9/^]*)";
+
+    /**
+     * The regex parser from version 1.1.1.
+     */
+    static UncertainValue regexParse(String value){
+
+        Pattern pat = Pattern.compile(parseRegex);
+
+        Matcher match = pat.matcher(value);
+
+        if(!match.matches()){
+            throw new IllegalArgumentException("Could not parse number:" + value);
+        }
+
+        String[] parts = new String[5];
+
+        for(int n = 1; n < 6; n++){
+            parts[n-1] = match.group(n);
+        }
+
+        if(parts[1] == null){
+            parts[1] = "0";
+        }
+        if(parts[2] == null){
+            parts[2] = "0";
+        }
+        if(parts[3] == null){
+            parts[3] = "0";
+        }
+        if(parts[4] == null){
+            parts[4] = "1";
+        }
+
+        double number = Double.parseDouble(parts[0]) * Math.pow(10, Integer.parseInt(parts[1]));
+        double uncertainty = Double.parseDouble(parts[2]) * Math.pow(10, Integer.parseInt(parts[3]));
+        Units units = Units.parse(parts[4]);
+
+        return new UncertainValue(number, uncertainty, units);
+    }
+}
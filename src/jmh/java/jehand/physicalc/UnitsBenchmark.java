@@ -0,0 +1,73 @@
+/*
+ *  Copyright ©, 2020, Joseph E. Hand
+ *
+ *  This file is part of PhysiCalc.
+ *
+ *  PhysiCalc is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  PhysiCalc is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with PhysiCalc.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package jehand.physicalc;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures parsing units and combining them.
+ */
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class UnitsBenchmark {
+
+    @Param({"m", "kg", "m/s^2", "kgm^2/s^2", "mmol/Ls", "kWhrs/m^3"})
+    public String units;
+
+    private Units a;
+
+    private Units b;
+
+    @Setup
+    public void setup(){
+        a = Units.parse("kgm/s^2");
+        b = Units.parse(units);
+    }
+
+    /**
+     * Parsing through the cache of parsed units, as expressions do.
+     */
+    @Benchmark
+    public Units parse(){
+        return Units.parse(units);
+    }
+
+    @Benchmark
+    public Units multiply(){
+        return Units.multiply(a, b);
+    }
+
+    @Benchmark
+    public Units divide(){
+        return Units.divide(a, b);
+    }
+
+    @Benchmark
+    public Units power(){
+        return Units.power(b, 3);
+    }
+}
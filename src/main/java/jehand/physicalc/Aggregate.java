@@ -0,0 +1,375 @@
+
+/*
+ *  Copyright ©, 2020, Joseph E. Hand
+ *
+ *  This file is part of PhysiCalc.
+ *
+ *  PhysiCalc is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  PhysiCalc is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with PhysiCalc.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package jehand.physicalc;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * A statistic of a stream of measurements: {@code <statistic> <expression> [in <units>]} or
+ * {@code <statistic> <file> cols <value>[,<uncertainty>] [units <units>] [in <units>]}
+ *
+ * The statistics are "mean", the mean and its standard error; "wmean", the mean weighted by the inverse square of
+ * each uncertainty, and its uncertainty; "std", the sample standard deviation; "sum", the total with the uncertainties
+ * added the same way as "+" adds them; and "chi2", the sum of the squared differences from the weighted mean in units
+ * of each uncertainty.
+ *
+ * The measurements are added one at a time to an accumulator that only holds running totals, so files are read
+ * without keeping their values. The sums are compensated, and the squared differences are updated with Welford's
+ * method around running means, which stay accurate over millions of values. Accumulators of separate parts of a stream can be
+ * merged, so the parts are read in parallel. A stream only has one units, so they are checked once, and the values
+ * are scaled to standard units once at the end.
+ */
+
+final class Aggregate {
+
+    static final String[] statistics = {"mean", "wmean", "std", "sum", "chi2"};
+
+    static final String usage = "Use: <statistic> <expression> [in <units>] or <statistic> <file> cols <value>[,<uncertainty>] [units <units>] [in <units>]";
+
+    /**
+     * The number of elements of a series added to each accumulator before they are merged.
+     */
+    private static final int seriesPart = 1 << 14;
+
+    private long count;
+
+    /**
+     * The sum of the values, and the part of it lost to rounding.
+     */
+    private double sum, sumError;
+
+    /**
+     * The sum of the uncertainties, and the part of it lost to rounding.
+     */
+    private double uncertainty, uncertaintyError;
+
+    private double mean;
+
+    /**
+     * The sum of the squared differences from the mean.
+     */
+    private double squares;
+
+    /**
+     * The sum of the weights, the inverse squares of the uncertainties.
+     */
+    private double weight;
+
+    private double weightedMean;
+
+    /**
+     * The sum of the squared differences from the weighted mean, each times its weight.
+     */
+    private double weightedSquares;
+
+    /**
+     * Is there a value without an uncertainty, which can't be weighted.
+     */
+    private boolean unweighted;
+
+    /**
+     * @param name a command's first token
+     * @return is it the name of a statistic
+     */
+    static boolean isStatistic(String name){
+        return Arrays.asList(statistics).contains(name);
+    }
+
+    /**
+     * Gets the expression a statistic command reads.
+     *
+     * @param args the command's tokens, starting with the statistic
+     * @return the expression, or an empty array if the command reads a file
+     */
+    static String[] expression(String[] args){
+
+        int end = end(args);
+
+        return isFile(args, end) ? new String[0] : Arrays.copyOfRange(args, 1, end);
+    }
+
+    /**
+     * @return the position of "in" at the end of a command, or the command's length if it doesn't have one
+     */
+    private static int end(String[] args){
+        return args.length > 3 && args[args.length - 2].equals("in") ? args.length - 2 : args.length;
+    }
+
+    private static boolean isFile(String[] args, int end){
+        return end >= 4 && args[2].equals("cols");
+    }
+
+    /**
+     * Works out a statistic command.
+     *
+     * @param args the command's tokens, starting with the statistic
+     * @param evaluate evaluates the expression the command reads
+     * @return the statistic
+     * @throws IllegalArgumentException if the command isn't valid or the statistic can't be worked out
+     * @throws UncheckedIOException if the file can't be read
+     */
+    static Result run(String[] args, Function<String[], Quantity> evaluate){
+
+        String statistic = args[0];
+        int end = end(args);
+        Conversion conversion = end == args.length ? null : Conversion.to(args[args.length - 1]);
+
+        Aggregate total;
+        Units units;
+        double factor;
+
+        if(isFile(args, end)){
+
+            String[] columns = args[3].split(",");
+
+            if(columns.length > 2 || (end != 4 && (end != 6 || !args[4].equals("units")))){
+                throw new IllegalArgumentException(usage);
+            }
+
+            units = Units.parse(end == 6 ? args[5] : "");
+            factor = units.getFactor();
+
+            boolean uncertain = columns.length == 2;
+
+            try {
+                total = CsvLoader.accumulate(Paths.get(args[1]), columns, Aggregate::new, (aggregate, row) -> aggregate.add(row[0], uncertain ? row[1] : 0), Aggregate::merge);
+            }catch(IOException e){
+                throw new UncheckedIOException(e);
+            }
+
+        }else{
+
+            if(end < 2) throw new IllegalArgumentException(usage);
+
+            Quantity quantity = evaluate.apply(Arrays.copyOfRange(args, 1, end));
+
+            units = quantity.getUnits();
+            factor = 1;
+
+            if(quantity instanceof UncertainSeries){
+                total = of((UncertainSeries) quantity);
+            }else{
+                total = new Aggregate();
+                total.add(((UncertainValue) quantity).value, ((UncertainValue) quantity).uncertainty);
+            }
+        }
+
+        return new Result(statistic, total.statistic(statistic, units, factor), total.count, conversion);
+    }
+
+    /**
+     * Adds every element of a series, in parallel parts.
+     */
+    private static Aggregate of(UncertainSeries series){
+
+        int size = series.size();
+
+        List<Aggregate> parts = IntStream.range(0, (size + seriesPart - 1) / seriesPart).parallel().mapToObj((part) -> {
+
+            Aggregate aggregate = new Aggregate();
+
+            for(int n = part * seriesPart, end = Math.min(size, n + seriesPart); n < end; n++){
+                aggregate.add(series.value[n], series.uncertainty[n]);
+            }
+
+            return aggregate;
+        }).collect(Collectors.toList());
+
+        Aggregate total = new Aggregate();
+
+        for(Aggregate part : parts){
+            total.merge(part);
+        }
+
+        return total;
+    }
+
+    /**
+     * Adds a measurement.
+     *
+     * @param value the value
+     * @param uncertainty the absolute uncertainty
+     */
+    void add(double value, double uncertainty){
+
+        count++;
+
+        double delta = value - mean;
+        mean += delta / count;
+        squares += delta * (value - mean);
+
+        addSum(value);
+        addUncertainty(uncertainty);
+
+        if(!(uncertainty > 0)){
+            unweighted = true;
+            return;
+        }
+
+        double w = 1 / (uncertainty * uncertainty);
+
+        weight += w;
+        delta = value - weightedMean;
+        weightedMean += delta * w / weight;
+        weightedSquares += w * delta * (value - weightedMean);
+    }
+
+    /**
+     * Adds the measurements of another accumulator, as if they had been added to this one.
+     *
+     * @param other the other accumulator, which isn't changed
+     */
+    void merge(Aggregate other){
+
+        if(other.count == 0) return;
+
+        long total = count + other.count;
+
+        double delta = other.mean - mean;
+        mean += delta * other.count / total;
+        squares += other.squares + delta * delta * ((double) count * other.count / total);
+        count = total;
+
+        addSum(other.sum);
+        addSum(other.sumError);
+        addUncertainty(other.uncertainty);
+        addUncertainty(other.uncertaintyError);
+
+        unweighted |= other.unweighted;
+
+        if(other.weight == 0) return;
+
+        double weights = weight + other.weight;
+
+        delta = other.weightedMean - weightedMean;
+        weightedMean += delta * other.weight / weights;
+        weightedSquares += other.weightedSquares + delta * delta * (weight * other.weight / weights);
+        weight = weights;
+    }
+
+    /**
+     * Adds to the sum, keeping the part lost to rounding (Neumaier's compensated summation).
+     */
+    private void addSum(double value){
+
+        double total = sum + value;
+
+        sumError += Math.abs(sum) >= Math.abs(value) ? (sum - total) + value : (value - total) + sum;
+        sum = total;
+    }
+
+    private void addUncertainty(double value){
+
+        double total = uncertainty + value;
+
+        uncertaintyError += Math.abs(uncertainty) >= Math.abs(value) ? (uncertainty - total) + value : (value - total) + uncertainty;
+        uncertainty = total;
+    }
+
+    /**
+     * Works out a statistic of the measurements added so far.
+     *
+     * @param statistic the name of the statistic
+     * @param units the units of the measurements
+     * @param factor the factor the measurements are multiplied by to scale them to standard units
+     * @return the statistic
+     * @throws IllegalArgumentException if there aren't enough measurements
+     */
+    private UncertainValue statistic(String statistic, Units units, double factor){
+
+        switch(statistic){
+            case "sum":
+                return scaled(sum + sumError, uncertainty + uncertaintyError, units, factor);
+            case "mean":
+                needs(2, "the standard error of the mean");
+                return scaled((sum + sumError) / count, Math.sqrt(squares / (count - 1) / count), units, factor);
+            case "std":
+                needs(2, "a standard deviation");
+                double deviation = Math.sqrt(squares / (count - 1));
+                return scaled(deviation, deviation / Math.sqrt(2.0 * (count - 1)), units, factor);
+            case "wmean":
+                needs(1, "a weighted mean");
+                weighted();
+                return scaled(weightedMean, 1 / Math.sqrt(weight), units, factor);
+            default:
+                needs(2, "chi-squared");
+                weighted();
+                return new UncertainValue(weightedSquares, 0, Units.parse(""), false, true);
+        }
+    }
+
+    private void needs(int values, String statistic){
+
+        if(count < values){
+            throw new IllegalArgumentException("At least " + values + (values == 1 ? " value is" : " values are") + " needed for " + statistic + ".");
+        }
+    }
+
+    private void weighted(){
+
+        if(unweighted){
+            throw new IllegalArgumentException("Every value needs an uncertainty to be weighted.");
+        }
+    }
+
+    private static UncertainValue scaled(double value, double uncertainty, Units units, double factor){
+        return new UncertainValue(value * factor, uncertainty * factor, units, false, true);
+    }
+
+    /**
+     * The result of a statistic command.
+     */
+    static final class Result {
+
+        final String statistic;
+
+        final UncertainValue value;
+
+        /**
+         * The value, followed by the degrees of freedom for chi-squared.
+         */
+        private final String text;
+
+        /**
+         * @throws IllegalArgumentException if the value can't be written in the units asked for
+         */
+        private Result(String statistic, UncertainValue value, long count, Conversion conversion){
+
+            String text = (conversion == null ? value.toString() : conversion.format(value)).trim();
+
+            this.statistic = statistic;
+            this.value = value;
+            this.text = statistic.equals("chi2") ? text + " with " + (count - 1) + " degrees of freedom" : text;
+        }
+
+        @Override
+        public String toString(){
+            return text;
+        }
+    }
+}
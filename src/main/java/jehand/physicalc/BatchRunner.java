@@ -0,0 +1,223 @@
+/*
+ *  Copyright ©, 2020, Joseph E. Hand
+ *
+ *  This file is part of PhysiCalc.
+ *
+ *  PhysiCalc is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  PhysiCalc is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with PhysiCalc.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package jehand.physicalc;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Runs a file of commands without the interactive prompt.
+ *
+ * Lines are read in segments of commands that don't read any label, lock, or "ans" written earlier in the same
+ * segment. The expressions in a segment are evaluated in parallel, then the commands are applied and their output
+ * written in input order, so the results are the same as typing the lines in one at a time.
+ *
+ * Each output line is written as the input line number, a tab, and the text.
+ */
+
+public class BatchRunner {
+
+    /**
+     * The most lines evaluated together, which bounds the memory used for a segment.
+     */
+    private static final int segmentLimit = 4096;
+
+    /**
+     * The fewest lines worth handing to a worker thread.
+     */
+    private static final int sliceMinimum = 16;
+
+    private static final String usage = "Usage: --batch <input file|-> [--out <output file>] [--threads <count>]";
+
+    private final Session session = new Session();
+
+    private final int threads;
+
+    private final ExecutorService workers;
+
+    private BatchRunner(int threads){
+
+        this.threads = threads;
+
+        this.workers = Executors.newFixedThreadPool(threads, (r) -> {
+            Thread t = new Thread(r, "physicalc-batch");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Runs batch mode from the command line arguments.
+     *
+     * @param args the arguments, starting with "--batch"
+     * @return the exit code
+     */
+    static int run(String[] args){
+
+        String input = null;
+        String output = null;
+        int threads = Runtime.getRuntime().availableProcessors();
+
+        try {
+
+            for(int n = 1; n < args.length; n++){
+
+                switch(args[n]){
+                    case "--out":
+                        output = args[++n];
+                        break;
+                    case "--threads":
+                        threads = Integer.parseInt(args[++n]);
+                        break;
+                    default:
+                        if(input != null) throw new IllegalArgumentException();
+                        input = args[n];
+                }
+            }
+
+            if(input == null || threads < 1) throw new IllegalArgumentException();
+
+        }catch(IllegalArgumentException | ArrayIndexOutOfBoundsException e){
+            System.err.println(usage);
+            return 2;
+        }
+
+        BatchRunner runner = new BatchRunner(threads);
+
+        try(BufferedReader in = input.equals("-")
+                ? new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8))
+                : Files.newBufferedReader(Paths.get(input), StandardCharsets.UTF_8);
+            BufferedWriter out = output == null
+                ? new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8))
+                : Files.newBufferedWriter(Paths.get(output), StandardCharsets.UTF_8)){
+
+            runner.process(in, out);
+
+        }catch(IOException e){
+            System.err.println("Batch Error: " + e.getMessage());
+            return 1;
+        }finally{
+            runner.workers.shutdown();
+        }
+
+        return 0;
+    }
+
+    /**
+     * Reads, evaluates, and writes every command in the input.
+     *
+     * @param in the commands
+     * @param out where the results are written
+     * @throws IOException if reading or writing fails
+     */
+    private void process(BufferedReader in, BufferedWriter out) throws IOException {
+
+        List<Session.Pending> segment = new ArrayList<>();
+        List<Integer> lineNumbers = new ArrayList<>();
+        Set<String> written = new HashSet<>();
+
+        String line;
+        int lineNumber = 0;
+
+        while((line = in.readLine()) != null){
+
+            lineNumber++;
+
+            if(line.trim().isEmpty()) continue;
+
+            Session.Pending pending = session.parse(line);
+
+            if(!segment.isEmpty() && (segment.size() == segmentLimit || pending.readsAll() || pending.reads(written))){
+
+                flush(segment, lineNumbers, out);
+                written.clear();
+            }
+
+            segment.add(pending);
+            lineNumbers.add(lineNumber);
+
+            if(pending.writtenName() != null) written.add(pending.writtenName());
+            if(pending.writesAnswer()) written.add("ans");
+        }
+
+        flush(segment, lineNumbers, out);
+    }
+
+    /**
+     * Evaluates a segment in parallel, then commits it in order and writes the output.
+     */
+    private void flush(List<Session.Pending> segment, List<Integer> lineNumbers, BufferedWriter out) throws IOException {
+
+        evaluateAll(segment);
+
+        for(int n = 0; n < segment.size(); n++){
+
+            String prefix = lineNumbers.get(n) + "\t";
+
+            for(String outputLine : segment.get(n).commit().split("\r?\n", -1)){
+                out.write(prefix);
+                out.write(outputLine);
+                out.newLine();
+            }
+        }
+
+        segment.clear();
+        lineNumbers.clear();
+    }
+
+    private void evaluateAll(List<Session.Pending> segment){
+
+        int slices = Math.min(threads, segment.size() / sliceMinimum);
+
+        if(slices <= 1){
+            segment.forEach(Session.Pending::evaluate);
+            return;
+        }
+
+        List<Callable<Void>> tasks = new ArrayList<>(slices);
+
+        for(int n = 0; n < slices; n++){
+
+            List<Session.Pending> slice = segment.subList(n * segment.size() / slices, (n + 1) * segment.size() / slices);
+
+            tasks.add(() -> {
+                slice.forEach(Session.Pending::evaluate);
+                return null;
+            });
+        }
+
+        try {
+
+            for(Future<Void> f : workers.invokeAll(tasks)){
+                f.get();
+            }
+
+        }catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Batch evaluation was interrupted", e);
+        }catch(ExecutionException e){
+            throw new IllegalStateException("Batch evaluation failed", e.getCause());
+        }
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ *  Copyright ©, 2020, Joseph E. Hand
+ *
+ *  This file is part of PhysiCalc.
+ *
+ *  PhysiCalc is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  PhysiCalc is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with PhysiCalc.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package jehand.physicalc;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * A thread-safe cache that holds at most a fixed number of entries.
+ *
+ * When the cache is full, an eighth of the entries are dropped in no particular order to make room. Loaders may run
+ * more than once for the same key when threads miss at the same time, so they should have no side effects.
+ *
+ * @param <K> the key type
+ * @param <V> the value type
+ */
+
+final class BoundedCache<K, V> {
+
+    private final ConcurrentHashMap<K, V> entries = new ConcurrentHashMap<>();
+
+    private final int capacity;
+
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder misses = new LongAdder();
+
+    BoundedCache(int capacity){
+        this.capacity = capacity;
+    }
+
+    /**
+     * Gets the value for a key, loading and caching it if it isn't cached.
+     *
+     * Values that fail to load aren't cached, and the loader's exception is passed on.
+     *
+     * @param key the key
+     * @param loader computes the value from the key
+     * @return the value
+     */
+    V get(K key, Function<? super K, ? extends V> loader){
+
+        V value = entries.get(key);
+
+        if(value != null){
+            hits.increment();
+            return value;
+        }
+
+        misses.increment();
+
+        value = loader.apply(key);
+
+        if(entries.size() >= capacity){
+            evict();
+        }
+
+        entries.put(key, value);
+
+        return value;
+    }
+
+    /**
+     * Gets a cached value without loading it.
+     *
+     * @param key the key
+     * @return the value, or null if it isn't cached
+     */
+    V getIfPresent(K key){
+
+        V value = entries.get(key);
+
+        if(value != null){
+            hits.increment();
+        }else{
+            misses.increment();
+        }
+
+        return value;
+    }
+
+    void put(K key, V value){
+
+        if(entries.size() >= capacity){
+            evict();
+        }
+
+        entries.put(key, value);
+    }
+
+    void clear(){
+        entries.clear();
+    }
+
+    int size(){
+        return entries.size();
+    }
+
+    long hits(){
+        return hits.sum();
+    }
+
+    long misses(){
+        return misses.sum();
+    }
+
+    private void evict(){
+
+        int remove = Math.max(1, capacity / 8);
+
+        Iterator<K> keys = entries.keySet().iterator();
+
+        for(int n = 0; n < remove && keys.hasNext(); n++){
+            keys.next();
+            keys.remove();
+        }
+    }
+}
@@ -0,0 +1,123 @@
+
+/*
+ *  Copyright ©, 2020, Joseph E. Hand
+ *
+ *  This file is part of PhysiCalc.
+ *
+ *  PhysiCalc is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  PhysiCalc is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with PhysiCalc.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package jehand.physicalc;
+
+/**
+ * A plan for writing values in the units named by a string, as the "in" command does.
+ *
+ * Plans are cached by the units string and shared between threads, so converting many values to the same units
+ * parses the string once and then only checks the dimensions and divides by the factor. Dividing, rather than
+ * multiplying by the inverse, keeps the output exactly as it has always been.
+ */
+
+final class Conversion {
+
+    private static final BoundedCache<String, Conversion> plans = new BoundedCache<>(1024);
+
+    /**
+     * The units the values are written in.
+     */
+    final Units units;
+
+    /**
+     * The factor of those units, which values in standard units are divided by.
+     */
+    final double factor;
+
+    /**
+     * The units string, as written after the values.
+     */
+    final String name;
+
+    /**
+     * The units string, with the space that separates it from the value.
+     */
+    private final String suffix;
+
+    /**
+     * The message thrown when a value doesn't have these dimensions.
+     */
+    private final String incompatible;
+
+    private Conversion(String units){
+
+        this.units = Units.parse(units);
+        this.factor = this.units.getFactor();
+        this.name = units;
+        this.suffix = " " + units;
+        this.incompatible = "Can not convert to incompatible units:" + this.units;
+    }
+
+    /**
+     * Gets the plan for a units string.
+     *
+     * @param units the units to write values in
+     * @return the plan
+     * @throws IllegalArgumentException if the units can't be parsed
+     */
+    static Conversion to(String units){
+        return plans.get(units, Conversion::new);
+    }
+
+    /**
+     * Checks that values in some units can be written in this plan's units.
+     *
+     * @param from the units of the values
+     * @throws IllegalArgumentException if the dimensions are different
+     */
+    void check(Units from){
+
+        if(from.dimensions != units.dimensions){
+            throw new IllegalArgumentException(incompatible);
+        }
+    }
+
+    /**
+     * Writes a value or series in these units.
+     *
+     * @param quantity the value or series
+     * @return the string
+     * @throws IllegalArgumentException if the dimensions are different
+     */
+    String format(Quantity quantity){
+
+        check(quantity.getUnits());
+
+        if(quantity instanceof UncertainValue){
+
+            UncertainValue value = (UncertainValue) quantity;
+            return format(value.value, value.uncertainty);
+        }
+
+        return ((UncertainSeries) quantity).toString(factor, name);
+    }
+
+    /**
+     * Writes a value in these units, without checking its dimensions.
+     *
+     * @param value the value in standard units
+     * @param uncertainty the uncertainty in standard units
+     * @return the string, such as 6.0+-0.24 km/hrs
+     */
+    String format(double value, double uncertainty){
+        return new StringBuilder(32 + suffix.length()).append(value / factor).append("+-").append(uncertainty / factor).append(suffix).toString();
+    }
+}
@@ -0,0 +1,413 @@
+/*
+ *  Copyright ©, 2020, Joseph E. Hand
+ *
+ *  This file is part of PhysiCalc.
+ *
+ *  PhysiCalc is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  PhysiCalc is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with PhysiCalc.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package jehand.physicalc;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Static class for reading numeric columns out of large comma-separated data files.
+ *
+ * The file is memory mapped and split into chunks on line boundaries. The chunks are read in parallel twice: once to
+ * count their rows, so the columns can be allocated at their final size, then again to parse the numbers straight
+ * into the columns. Only the columns asked for are kept, so the memory used doesn't depend on the size of the text.
+ * Columns can also be added to accumulators row by row instead, so nothing but the accumulators is kept.
+ */
+
+final class CsvLoader {
+
+    /**
+     * The size the file is split into before each chunk is extended to the end of its last line.
+     */
+    private static final long chunkSize = 64L << 20;
+
+    private CsvLoader(){}
+
+    /**
+     * Reads columns from a data file.
+     *
+     * Columns are named by the file's header, or numbered from 1. The first line is a header if any of its fields
+     * isn't a number. Blank lines are skipped.
+     *
+     * @param file the file to read
+     * @param columns the names or numbers of the columns to read
+     * @return the values of each column, in the order asked for
+     * @throws IOException if the file can't be read
+     * @throws IllegalArgumentException if a column doesn't exist or a field isn't a number
+     */
+    static double[][] readColumns(Path file, String[] columns) throws IOException {
+
+        int[] fields = new int[columns.length];
+        List<Chunk> chunks = split(file, columns, fields);
+
+        int rows = 0;
+
+        for(Chunk chunk : chunks){
+
+            chunk.firstRow = rows;
+
+            if((long) rows + chunk.rows > Integer.MAX_VALUE - 8){
+                throw new IllegalArgumentException("Too many rows to load from " + file);
+            }
+
+            rows += chunk.rows;
+        }
+
+        double[][] values = new double[columns.length][rows];
+
+        IntStream.range(0, chunks.size()).parallel().forEach((n) -> {
+
+            int[] row = {chunks.get(n).firstRow};
+
+            chunks.get(n).parse(fields, file, (fieldValues) -> {
+
+                for(int column = 0; column < fieldValues.length; column++){
+                    values[column][row[0]] = fieldValues[column];
+                }
+
+                row[0]++;
+            });
+        });
+
+        return values;
+    }
+
+    /**
+     * Reads columns from a data file into accumulators, without keeping the values.
+     *
+     * Each chunk is read into its own accumulator in parallel, and the accumulators are then merged in the order of
+     * the chunks, so the result is the same every time. The columns are named the same way as for
+     * {@link #readColumns(Path, String[])}.
+     *
+     * @param file the file to read
+     * @param columns the names or numbers of the columns to read
+     * @param accumulator creates an empty accumulator
+     * @param add adds the fields of one row, in the order of the columns, to an accumulator
+     * @param merge adds the second accumulator to the first
+     * @param <A> the type of the accumulator
+     * @return the merged accumulator
+     * @throws IOException if the file can't be read
+     * @throws IllegalArgumentException if a column doesn't exist or a field isn't a number
+     */
+    static <A> A accumulate(Path file, String[] columns, Supplier<A> accumulator, BiConsumer<A, double[]> add, BiConsumer<A, A> merge) throws IOException {
+
+        int[] fields = new int[columns.length];
+        List<Chunk> chunks = split(file, columns, fields);
+
+        List<A> parts = IntStream.range(0, chunks.size()).parallel().mapToObj((n) -> {
+
+            A part = accumulator.get();
+            chunks.get(n).parse(fields, file, (values) -> add.accept(part, values));
+
+            return part;
+        }).collect(Collectors.toList());
+
+        A total = accumulator.get();
+
+        for(A part : parts){
+            merge.accept(total, part);
+        }
+
+        return total;
+    }
+
+    /**
+     * Maps a data file in chunks and counts the lines of each one.
+     *
+     * @param fields filled with the field index of each column
+     * @return the chunks, with their first line numbers set
+     */
+    private static List<Chunk> split(Path file, String[] columns, int[] fields) throws IOException {
+
+        try(FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)){
+
+            long size = channel.size();
+            long dataStart = lineEnd(channel, 0);
+
+            String[] first = new String(read(channel, 0, dataStart), StandardCharsets.UTF_8).trim().split(",", -1);
+            boolean header = false;
+
+            for(String field : first){
+                header |= !isNumber(field.trim());
+            }
+
+            for(int n = 0; n < columns.length; n++){
+                fields[n] = findColumn(first, header, columns[n], file);
+            }
+
+            if(!header) dataStart = 0;
+
+            List<Chunk> chunks = new ArrayList<>();
+
+            for(long start = dataStart; start < size; ){
+
+                long end = start + chunkSize >= size ? size : lineEnd(channel, start + chunkSize);
+
+                chunks.add(new Chunk(channel.map(FileChannel.MapMode.READ_ONLY, start, end - start)));
+                start = end;
+            }
+
+            IntStream.range(0, chunks.size()).parallel().forEach((n) -> chunks.get(n).count());
+
+            long line = header ? 2 : 1;
+
+            for(Chunk chunk : chunks){
+                chunk.firstLine = line;
+                line += chunk.lines;
+            }
+
+            return chunks;
+        }
+    }
+
+    private static int findColumn(String[] first, boolean header, String column, Path file){
+
+        if(header){
+            for(int n = 0; n < first.length; n++){
+                if(first[n].trim().equals(column)) return n;
+            }
+        }
+
+        try {
+
+            int number = Integer.parseInt(column);
+
+            if(number >= 1 && number <= first.length) return number - 1;
+
+        }catch(NumberFormatException e){
+            // fall through to the error
+        }
+
+        throw new IllegalArgumentException("There is no column \"" + column + "\" in " + file);
+    }
+
+    private static boolean isNumber(String field){
+
+        try {
+            Double.parseDouble(field);
+            return true;
+        }catch(NumberFormatException e){
+            return false;
+        }
+    }
+
+    /**
+     * Finds the start of the line after the given position.
+     *
+     * @param channel the file
+     * @param position the position to search from
+     * @return the index after the next newline, or the size of the file if there isn't one
+     */
+    private static long lineEnd(FileChannel channel, long position) throws IOException {
+
+        ByteBuffer buffer = ByteBuffer.allocate(8192);
+
+        while(true){
+
+            buffer.clear();
+
+            int read = channel.read(buffer, position);
+
+            if(read < 0) return channel.size();
+
+            for(int n = 0; n < read; n++){
+                if(buffer.get(n) == '\n') return position + n + 1;
+            }
+
+            position += read;
+        }
+    }
+
+    private static byte[] read(FileChannel channel, long start, long end) throws IOException {
+
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(end - start, 1 << 20));
+
+        while(buffer.hasRemaining() && channel.read(buffer, start + buffer.position()) > 0);
+
+        return buffer.array();
+    }
+
+    /**
+     * A mapped part of the file that starts at the beginning of a line and ends at the end of one.
+     */
+    private static final class Chunk implements CharSequence {
+
+        private final MappedByteBuffer buffer;
+
+        /**
+         * The number of lines with text on them.
+         */
+        int rows;
+
+        /**
+         * The number of lines, including blank ones.
+         */
+        int lines;
+
+        int firstRow;
+
+        long firstLine;
+
+        Chunk(MappedByteBuffer buffer){
+            this.buffer = buffer;
+        }
+
+        void count(){
+
+            int limit = buffer.limit();
+
+            for(int start = 0; start < limit; ){
+
+                int end = endOfLine(start);
+
+                lines++;
+
+                if(!isBlank(start, end)) rows++;
+
+                start = end + 1;
+            }
+        }
+
+        /**
+         * Parses each line with text on it.
+         *
+         * @param fields the field index of each column
+         * @param file the file, for error messages
+         * @param rows given the values of each row's columns, in an array that is reused for the next row
+         */
+        void parse(int[] fields, Path file, Consumer<double[]> rows){
+
+            int limit = buffer.limit();
+            long line = firstLine;
+            double[] values = new double[fields.length];
+
+            for(int start = 0; start < limit; line++){
+
+                int end = endOfLine(start);
+                int next = end + 1;
+
+                if(!isBlank(start, end)){
+
+                    while(buffer.get(end - 1) == '\r') end--;
+
+                    parseLine(start, end, fields, values, line, file);
+                    rows.accept(values);
+                }
+
+                start = next;
+            }
+        }
+
+        /**
+         * @return the position of the newline ending the line that starts at a position, or the limit if there isn't one
+         */
+        private int endOfLine(int start){
+
+            int end = start;
+
+            while(end < buffer.limit() && buffer.get(end) != '\n') end++;
+
+            return end;
+        }
+
+        /**
+         * Checks whether a line has no text, so {@link #count()} and {@link #parse} skip the same lines.
+         *
+         * @return is every character between the positions a carriage return
+         */
+        private boolean isBlank(int start, int end){
+
+            for(int n = start; n < end; n++){
+                if(buffer.get(n) != '\r') return false;
+            }
+
+            return true;
+        }
+
+        private void parseLine(int start, int end, int[] fields, double[] values, long line, Path file){
+
+            for(int column = 0; column < fields.length; column++){
+
+                // find the field by counting commas from the start of the line
+                int fieldStart = start;
+
+                for(int field = 0; field < fields[column]; field++){
+
+                    while(fieldStart < end && buffer.get(fieldStart) != ',') fieldStart++;
+
+                    if(fieldStart == end){
+                        throw new IllegalArgumentException("Line " + line + " of " + file + " doesn't have column " + (fields[column] + 1));
+                    }
+
+                    fieldStart++;
+                }
+
+                int fieldEnd = fieldStart;
+
+                while(fieldEnd < end && buffer.get(fieldEnd) != ',') fieldEnd++;
+
+                while(fieldStart < fieldEnd && isSpace(buffer.get(fieldStart))) fieldStart++;
+
+                while(fieldEnd > fieldStart && isSpace(buffer.get(fieldEnd - 1))) fieldEnd--;
+
+                try {
+                    values[column] = DecimalParser.parseDecimal(this, fieldStart, fieldEnd);
+                }catch(NumberFormatException e){
+                    throw new IllegalArgumentException("Could not parse number on line " + line + " of " + file + ":" + subSequence(fieldStart, fieldEnd));
+                }
+            }
+        }
+
+        private static boolean isSpace(byte b){
+            return b == ' ' || b == '\t' || b == '"';
+        }
+
+        public int length(){
+            return buffer.limit();
+        }
+
+        public char charAt(int index){
+            return (char) (buffer.get(index) & 0xFF);
+        }
+
+        public CharSequence subSequence(int start, int end){
+
+            byte[] bytes = new byte[end - start];
+
+            for(int n = start; n < end; n++){
+                bytes[n - start] = buffer.get(n);
+            }
+
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+}
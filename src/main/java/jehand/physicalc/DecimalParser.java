@@ -0,0 +1,150 @@
+/*
+ *  Copyright ©, 2020, Joseph E. Hand
+ *
+ *  This file is part of PhysiCalc.
+ *
+ *  PhysiCalc is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  PhysiCalc is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with PhysiCalc.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package jehand.physicalc;
+
+/**
+ * Static class for reading numbers straight out of character sequences.
+ *
+ * Numbers with up to 15 significant digits and 22 decimal places are converted exactly with one division, which gives
+ * the same correctly rounded result as {@link Double#parseDouble(String)}. Anything else falls back to the JDK
+ * parser.
+ */
+
+final class DecimalParser {
+
+    /**
+     * Powers of ten that are exactly representable as doubles.
+     */
+    private static final double[] powersOfTen = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    private static final int maxSignificantDigits = 15;
+
+    private DecimalParser(){}
+
+    /**
+     * Parses an optionally negative run of digits and decimal points, as {@link Double#parseDouble(String)} would.
+     *
+     * @param s the characters
+     * @param start the first character
+     * @param end one past the last character
+     * @return the value
+     * @throws NumberFormatException if the characters aren't a valid decimal
+     */
+    static double parseDecimal(CharSequence s, int start, int end){
+
+        int n = start;
+        boolean negative = n < end && s.charAt(n) == '-';
+
+        if(negative) n++;
+
+        long digits = 0;
+        int significant = 0;
+        int places = 0;
+        boolean point = false;
+        boolean any = false;
+
+        for(; n < end; n++){
+
+            char c = s.charAt(n);
+
+            if(c == '.'){
+
+                if(point) return fallback(s, start, end);
+
+                point = true;
+                continue;
+            }
+
+            if(c < '0' || c > '9') return fallback(s, start, end);
+
+            any = true;
+
+            if(point) places++;
+
+            // leading zeros aren't significant
+            if(digits == 0 && c == '0') continue;
+
+            if(++significant > maxSignificantDigits) return fallback(s, start, end);
+
+            digits = digits * 10 + (c - '0');
+        }
+
+        if(!any || places >= powersOfTen.length) return fallback(s, start, end);
+
+        double value = places == 0 ? digits : digits / powersOfTen[places];
+
+        return negative ? -value : value;
+    }
+
+    /**
+     * Parses an optionally negative run of digits, as {@link Integer#parseInt(String)} would.
+     *
+     * @param s the characters
+     * @param start the first character
+     * @param end one past the last character
+     * @return the value
+     * @throws NumberFormatException if the characters aren't a valid int
+     */
+    static int parseInt(CharSequence s, int start, int end){
+
+        int n = start;
+        boolean negative = n < end && s.charAt(n) == '-';
+
+        if(negative) n++;
+
+        // nine digits can't overflow
+        if(n == end || end - n > 9) return Integer.parseInt(s.subSequence(start, end).toString());
+
+        int value = 0;
+
+        for(; n < end; n++){
+
+            char c = s.charAt(n);
+
+            if(c < '0' || c > '9') return Integer.parseInt(s.subSequence(start, end).toString());
+
+            value = value * 10 + (c - '0');
+        }
+
+        return negative ? -value : value;
+    }
+
+    /**
+     * Raises ten to an integer power, exactly as {@code Math.pow(10, power)} does.
+     *
+     * @param power the power
+     * @return the result
+     */
+    static double powerOfTen(int power){
+
+        if(power >= 0 && power < powersOfTen.length){
+            return powersOfTen[power];
+        }
+
+        return Math.pow(10, power);
+    }
+
+    private static double fallback(CharSequence s, int start, int end){
+        return Double.parseDouble(s.subSequence(start, end).toString());
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ *  Copyright ©, 2020, Joseph E. Hand
+ *
+ *  This file is part of PhysiCalc.
+ *
+ *  PhysiCalc is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  PhysiCalc is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with PhysiCalc.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package jehand.physicalc;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.*;
+
+/**
+ * Entry point for using PhysiCalc from other programs.
+ *
+ * The constants, units, and help text are loaded once and shared by every engine and session. They never change
+ * after loading, so any number of sessions can use them on different threads. Create a {@link Session} for each
+ * independent set of labels and locks:
+ *
+ * <pre>{@code
+ * Session session = new Engine().newSession();
+ * session.assign("d", "2.5+-0.1m");
+ * String speed = session.convert("d 1.5s /", "km/hrs");
+ * }</pre>
+ */
+
+public final class Engine {
+
+    /**
+     * HashMap storing the built-in physical constants.
+     */
+    static final Map<String, UncertainValue> physicalConstants;
+
+    static{
+
+        Tables tables = Tables.instance();
+        Map<String, UncertainValue> values = new HashMap<>();
+
+        for(int n = 0; n < tables.constantSymbols.length; n++){
+            values.put(tables.constantSymbols[n], new UncertainValue(tables.constantValues[n], tables.constantUncertainties[n], Units.parse(tables.constantUnits[n]), true, false));
+        }
+
+        physicalConstants = Collections.unmodifiableMap(values);
+    }
+
+    /**
+     * Gets information text, such as license information and help. The texts are put in a map the first time one is
+     * asked for. Keys starting with an exclamation point (!) can't be typed as commands.
+     *
+     * @param key the text's key, as in info.txt
+     * @return the text, or null if there isn't one with that key
+     */
+    static String info(String key){
+        return InfoText.texts.get(key);
+    }
+
+    /**
+     * Checks for information text without building the map of texts, since every command line is checked.
+     *
+     * @param key the text's key, as in info.txt
+     * @return is there a text with that key
+     */
+    static boolean hasInfo(String key){
+        return InfoKeys.keys.contains(key);
+    }
+
+    private static final class InfoText {
+
+        private static final Map<String, String> texts = Tables.instance().info();
+    }
+
+    private static final class InfoKeys {
+
+        private static final Set<String> keys = new HashSet<>(Arrays.asList(Tables.instance().infoKeys));
+    }
+
+    /**
+     * @return the table of constants shown by "list constants", built the first time it is asked for
+     */
+    static String constantsDescriptions(){
+        return ConstantsDescriptions.table;
+    }
+
+    private static final class ConstantsDescriptions {
+
+        private static final String table;
+
+        static{
+
+            Tables tables = Tables.instance();
+            StringBuilder description = new StringBuilder();
+
+            description.append(String.format("%38s  %-10s%-35s%-15s%s", "Constant:", "Symbol:", "Value:", "Units:", "Description:"));
+
+            for(int n = 0; n < tables.constantSymbols.length; n++){
+                description.append(String.format("\n%38s  %-10s%-35s%-15s%s", tables.constantNames[n], tables.constantSymbols[n],
+                        tables.constantValueTexts[n] + "±" + tables.constantUncertaintyTexts[n], tables.constantUnits[n], tables.constantDescriptions[n]));
+            }
+
+            table = description.toString();
+        }
+    }
+
+    /**
+     * Creates a session with no labels or locks, and "ans" set to 0.
+     *
+     * @return the session
+     */
+    public Session newSession(){
+        return new Session();
+    }
+
+    /**
+     * Creates a session whose labels and locks are saved in a directory, restoring any saved there before.
+     *
+     * Each change is written as it is made, so nothing is lost if the program stops. syncMillis sets how long a change
+     * may wait before it is forced to the disk, which only matters if the whole system stops.
+     *
+     * @param directory the directory, which is created if it doesn't exist
+     * @param syncMillis how often changes are forced to the disk, or 0 to force each one as it is made
+     * @return the session, which should be closed when it is no longer needed
+     * @throws IOException if the saved files can't be read or created
+     */
+    public Session openSession(Path directory, long syncMillis) throws IOException {
+
+        Session session = new Session();
+        session.persist(directory, syncMillis);
+
+        return session;
+    }
+
+    /**
+     * Gets a built-in physical constant.
+     *
+     * @param symbol the constant's symbol, as listed by "list constants"
+     * @return the constant, or null if there isn't one with that symbol
+     */
+    public UncertainValue constant(String symbol){
+        return physicalConstants.get(symbol);
+    }
+
+    /**
+     * @return the symbols of the built-in physical constants
+     */
+    public Set<String> constantSymbols(){
+        return physicalConstants.keySet();
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ *  Copyright ©, 2020, Joseph E. Hand
+ *
+ *  This file is part of PhysiCalc.
+ *
+ *  PhysiCalc is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  PhysiCalc is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with PhysiCalc.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package jehand.physicalc;
+
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An RPN expression compiled into a plan that can be evaluated many times.
+ *
+ * Each token becomes an opcode. Built-in constants are resolved to their values, and tokens that could be labels or
+ * locks keep their name along with the literal they parse to, since a label can be created with any name later.
+ * All arrays are indexed by token position.
+ */
+
+final class Expression {
+
+    static final byte ADD = 0;
+    static final byte SUBTRACT = 1;
+    static final byte MULTIPLY = 2;
+    static final byte DIVIDE = 3;
+    static final byte POWER = 4;
+    static final byte ANSWER = 5;
+    static final byte CONSTANT = 6;
+    static final byte NAME = 7;
+
+    /**
+     * The tokens the expression was compiled from.
+     */
+    final String[] tokens;
+
+    /**
+     * The opcode for each token.
+     */
+    final byte[] ops;
+
+    /**
+     * The exponent of each POWER token.
+     */
+    final int[] powers;
+
+    /**
+     * The value of each CONSTANT token, and the parsed literal of each NAME token that is a valid number or series.
+     */
+    final Quantity[] values;
+
+    /**
+     * The error thrown when a POWER token's exponent or a NAME token's literal can't be parsed.
+     */
+    final String[] errors;
+
+    /**
+     * The label and lock names, and "ans", read by this expression.
+     */
+    final String[] names;
+
+    /**
+     * The constant and repeated subexpressions that evaluation can skip, or null if there are none.
+     */
+    final Shortcuts shortcuts;
+
+    private Expression(String[] tokens){
+
+        this.tokens = tokens;
+        this.ops = new byte[tokens.length];
+        this.powers = new int[tokens.length];
+        this.values = new Quantity[tokens.length];
+        this.errors = new String[tokens.length];
+
+        Set<String> names = new LinkedHashSet<>();
+
+        for(int n = 0; n < tokens.length; n++){
+
+            switch(tokens[n]){
+                case "+":
+                    ops[n] = ADD;
+                    break;
+                case "-":
+                    ops[n] = SUBTRACT;
+                    break;
+                case "*":
+                case "x":
+                    ops[n] = MULTIPLY;
+                    break;
+                case "/":
+                    ops[n] = DIVIDE;
+                    break;
+                case "ans":
+                    ops[n] = ANSWER;
+                    names.add("ans");
+                    break;
+                default:
+
+                    if(tokens[n].startsWith("^")){
+
+                        ops[n] = POWER;
+
+                        try {
+                            powers[n] = Integer.parseInt(tokens[n].substring(1));
+                        }catch(NumberFormatException e){
+                            errors[n] = e.getMessage();
+                        }
+                        break;
+                    }
+
+                    UncertainValue constant = Engine.physicalConstants.get(tokens[n]);
+
+                    if(constant != null){
+                        ops[n] = CONSTANT;
+                        values[n] = constant;
+                        break;
+                    }
+
+                    ops[n] = NAME;
+                    names.add(tokens[n]);
+
+                    if(!tokens[n].startsWith("[") && !UncertainValue.startsLikeNumber(tokens[n])){
+                        errors[n] = UncertainValue.notANumber(tokens[n]);
+                        break;
+                    }
+
+                    try {
+                        values[n] = tokens[n].startsWith("[") ? UncertainSeries.parse(tokens[n]) : UncertainValue.parse(tokens[n]);
+                    }catch(IllegalArgumentException e){
+                        errors[n] = e.getMessage();
+                    }
+            }
+        }
+
+        this.names = names.toArray(new String[0]);
+        this.shortcuts = Shortcuts.find(this);
+    }
+
+    /**
+     * Compiles a list of tokens.
+     *
+     * Tokens that can't be parsed are only reported when they are evaluated, so the errors match evaluating the
+     * tokens directly.
+     *
+     * @param tokens the tokens, in RPN order
+     * @return the compiled expression
+     */
+    static Expression compile(String[] tokens){
+        return new Expression(tokens);
+    }
+
+    /**
+     * @return the number of tokens
+     */
+    int length(){
+        return ops.length;
+    }
+
+    /**
+     * Gets the literal value of a NAME token that isn't a label or lock.
+     *
+     * @param n the token position
+     * @return the value
+     * @throws IllegalArgumentException if the token isn't a valid number
+     */
+    Quantity literal(int n){
+
+        if(values[n] == null){
+            throw new IllegalArgumentException(errors[n]);
+        }
+
+        return values[n];
+    }
+
+    /**
+     * Gets the exponent of a POWER token.
+     *
+     * @param n the token position
+     * @return the exponent
+     * @throws IllegalArgumentException if the exponent isn't a valid integer
+     */
+    int power(int n){
+
+        if(errors[n] != null){
+            throw new NumberFormatException(errors[n]);
+        }
+
+        return powers[n];
+    }
+}
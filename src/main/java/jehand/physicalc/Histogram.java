@@ -0,0 +1,149 @@
+
+/*
+ *  Copyright ©, 2020, Joseph E. Hand
+ *
+ *  This file is part of PhysiCalc.
+ *
+ *  PhysiCalc is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  PhysiCalc is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with PhysiCalc.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package jehand.physicalc;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A thread-safe histogram of non-negative values, such as times in nanoseconds.
+ *
+ * Values are counted in buckets that double in width with each power of two, split into 16 sub-buckets, so any value
+ * is known to within about 6%. Recording never locks, and reading while other threads record gives a result that is
+ * at most a few values out of date.
+ */
+
+final class Histogram {
+
+    private static final int subBucketBits = 4;
+
+    private static final int subBuckets = 1 << subBucketBits;
+
+    private final AtomicLongArray counts = new AtomicLongArray((64 - subBucketBits + 1) * subBuckets);
+
+    private final LongAdder count = new LongAdder();
+
+    private final LongAdder sum = new LongAdder();
+
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Records a value. Negative values are recorded as 0.
+     *
+     * @param value the value
+     */
+    void record(long value){
+
+        if(value < 0) value = 0;
+
+        counts.getAndIncrement(index(value));
+        count.increment();
+        sum.add(value);
+
+        long currentMax = max.get();
+
+        while(value > currentMax && !max.compareAndSet(currentMax, value)){
+            currentMax = max.get();
+        }
+    }
+
+    long count(){
+        return count.sum();
+    }
+
+    long max(){
+        return max.get();
+    }
+
+    /**
+     * @return the mean of the recorded values, or 0 if there are none
+     */
+    double mean(){
+
+        long n = count.sum();
+
+        return n == 0 ? 0 : (double) sum.sum() / n;
+    }
+
+    /**
+     * Gets a percentile of the recorded values.
+     *
+     * @param percent the percentage of values that are at or below the result, from 0 to 100
+     * @return the highest value in the bucket holding the percentile, or 0 if nothing has been recorded
+     */
+    long percentile(double percent){
+
+        long n = count.sum();
+
+        if(n == 0) return 0;
+
+        long rank = Math.max(1, (long) Math.ceil(percent / 100 * n));
+        long seen = 0;
+
+        for(int index = 0; index < counts.length(); index++){
+
+            seen += counts.get(index);
+
+            if(seen >= rank){
+                return Math.min(highest(index), max.get());
+            }
+        }
+
+        return max.get();
+    }
+
+    /**
+     * Forgets every recorded value. Values recorded at the same time may be partly kept.
+     */
+    void reset(){
+
+        for(int index = 0; index < counts.length(); index++){
+            counts.set(index, 0);
+        }
+
+        count.reset();
+        sum.reset();
+        max.set(0);
+    }
+
+    private static int index(long value){
+
+        if(value < subBuckets) return (int) value;
+
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+
+        return (exponent - subBucketBits + 1) * subBuckets + (int) (value >>> (exponent - subBucketBits)) - subBuckets;
+    }
+
+    /**
+     * @return the highest value counted in a bucket
+     */
+    private static long highest(int index){
+
+        if(index < subBuckets) return index;
+
+        int bucket = index / subBuckets;
+        long lowest = (long) (subBuckets + index % subBuckets) << (bucket - 1);
+
+        return lowest + (1L << (bucket - 1)) - 1;
+    }
+}
@@ -0,0 +1,724 @@
+
+/*
+ *  Copyright ©, 2020, Joseph E. Hand
+ *
+ *  This file is part of PhysiCalc.
+ *
+ *  PhysiCalc is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  PhysiCalc is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with PhysiCalc.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package jehand.physicalc;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Keeps a workspace's labels and locks on disk, so they can be restored when PhysiCalc starts again.
+ *
+ * Every change is appended to a journal as a small binary record. When the journal grows larger than the last
+ * snapshot, a new, empty journal is started, and the whole workspace as it was at that point is written to a new
+ * snapshot on a background thread. Restoring maps the snapshot into memory, reads it, and then replays the journals
+ * after it in order.
+ *
+ * Files are numbered by generation: journal-n.bin holds the changes made after snapshot-n.bin was written. A new
+ * snapshot is only used once it has been completely written and renamed, and the journals before it are kept until
+ * then, so PhysiCalc can stop at any point. A record that was only partly written when it stopped is detected by its
+ * checksum and dropped.
+ *
+ * Every record is an int length and an int CRC-32 of the rest, then a type byte, the name, and the data for the type.
+ */
+
+final class Journal implements Closeable {
+
+    private static final int journalMagic = 0x50434A31;
+    private static final int snapshotMagic = 0x50435331;
+
+    private static final byte VALUE = 1;
+    private static final byte SERIES = 2;
+    private static final byte LOCK = 3;
+    private static final byte REMOVE = 4;
+
+    /**
+     * The journal is never compacted while it is smaller than this.
+     */
+    private static final long compactMinimum = 1 << 20;
+
+    private final Path directory;
+
+    private final Workspace workspace;
+
+    /**
+     * How often to force changes to the disk, or 0 to force each one before the command finishes.
+     */
+    private final long syncMillis;
+
+    private final ScheduledExecutorService syncer;
+
+    /**
+     * Writes snapshots, so changes don't wait for them.
+     */
+    private final ExecutorService compactor = Executors.newSingleThreadExecutor(daemon("physicalc-compact"));
+
+    private final Encoder encoder = new Encoder();
+
+    /**
+     * The generation of the journal being written.
+     */
+    private long generation;
+
+    private FileChannel channel;
+
+    private long journalSize;
+
+    private long snapshotSize;
+
+    /**
+     * Have records been written since the last time the journal was forced to the disk.
+     */
+    private boolean dirty;
+
+    /**
+     * Is a snapshot being written.
+     */
+    private boolean compacting;
+
+    /**
+     * The error that stopped the journal, after which nothing more is written, or null if there hasn't been one.
+     */
+    private IOException failure;
+
+    private Journal(Path directory, Workspace workspace, long syncMillis){
+
+        this.directory = directory;
+        this.workspace = workspace;
+        this.syncMillis = syncMillis;
+
+        if(syncMillis > 0){
+            syncer = Executors.newSingleThreadScheduledExecutor(daemon("physicalc-journal"));
+        }else{
+            syncer = null;
+        }
+    }
+
+    private static ThreadFactory daemon(String name){
+
+        return (r) -> {
+            Thread thread = new Thread(r, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * Restores a workspace from a directory, then keeps recording its changes there.
+     *
+     * @param directory the directory, which is created if it doesn't exist
+     * @param workspace an empty workspace to restore into
+     * @param syncMillis how often to force changes to the disk, or 0 to force each one before the command finishes
+     * @return the journal, which the workspace must report its changes to
+     * @throws IOException if the files can't be read or created
+     */
+    static Journal open(Path directory, Workspace workspace, long syncMillis) throws IOException {
+
+        Files.createDirectories(directory);
+
+        long generation = -1;
+
+        try(DirectoryStream<Path> snapshots = Files.newDirectoryStream(directory, "snapshot-*.bin")){
+            for(Path snapshot : snapshots){
+                generation = Math.max(generation, generation(snapshot));
+            }
+        }
+
+        Journal journal = new Journal(directory, workspace, syncMillis);
+
+        if(generation >= 0){
+            journal.snapshotSize = restoreSnapshot(file(directory, "snapshot", generation), workspace);
+        }else{
+            generation = 0;
+        }
+
+        long snapshotGeneration = generation;
+
+        // later journals were started for snapshots that weren't finished
+        for(; Files.exists(file(directory, "journal", generation + 1)); generation++){
+
+            Path file = file(directory, "journal", generation);
+
+            try(FileChannel in = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)){
+                replayJournal(in, file, workspace);
+            }
+        }
+
+        Path file = file(directory, "journal", generation);
+
+        journal.generation = generation;
+        journal.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        journal.journalSize = replayJournal(journal.channel, file, workspace);
+
+        deleteOlder(directory, snapshotGeneration);
+
+        if(journal.syncer != null){
+            journal.syncer.scheduleWithFixedDelay(journal::sync, syncMillis, syncMillis, TimeUnit.MILLISECONDS);
+        }
+
+        return journal;
+    }
+
+    private static Path file(Path directory, String kind, long generation){
+        return directory.resolve(kind + "-" + generation + ".bin");
+    }
+
+    /**
+     * @return the generation number in a journal or snapshot file's name, or -1 if it doesn't have one
+     */
+    private static long generation(Path file){
+
+        String name = file.getFileName().toString();
+
+        try {
+            return Long.parseLong(name.substring(name.indexOf('-') + 1, name.length() - 4));
+        }catch(NumberFormatException e){
+            return -1;
+        }
+    }
+
+    private static long restoreSnapshot(Path file, Workspace workspace) throws IOException {
+
+        try(FileChannel in = FileChannel.open(file, StandardOpenOption.READ)){
+
+            long size = in.size();
+
+            if(size > Integer.MAX_VALUE){
+                throw new IOException("The snapshot is too large: " + file);
+            }
+
+            ByteBuffer map = in.map(FileChannel.MapMode.READ_ONLY, 0, size);
+
+            if(size < 4 || map.getInt() != snapshotMagic || replay(map, workspace) != size){
+                throw new IOException("The snapshot is damaged: " + file);
+            }
+
+            return size;
+        }
+    }
+
+    /**
+     * Replays a journal into the workspace, and cuts off anything after the last whole record.
+     *
+     * @return the size of the journal
+     */
+    private static long replayJournal(FileChannel channel, Path file, Workspace workspace) throws IOException {
+
+        long size = channel.size();
+
+        // a journal shorter than its header was being created when PhysiCalc stopped
+        if(size < 4){
+            return startJournal(channel);
+        }
+
+        if(size > Integer.MAX_VALUE){
+            throw new IOException("The journal is too large: " + file);
+        }
+
+        // read rather than mapped, because a mapped file can't be truncated on every system
+        ByteBuffer contents = ByteBuffer.allocate((int) size);
+
+        while(contents.hasRemaining() && channel.read(contents, contents.position()) >= 0);
+
+        contents.flip();
+
+        if(contents.getInt() != journalMagic){
+            throw new IOException("Not a PhysiCalc journal: " + file);
+        }
+
+        long end = replay(contents, workspace);
+
+        // anything after the last whole record was being written when PhysiCalc stopped
+        if(end < size){
+            channel.truncate(end);
+        }
+
+        channel.position(end);
+
+        return end;
+    }
+
+    /**
+     * Writes the header of a new journal.
+     *
+     * @return the size of the journal
+     */
+    private static long startJournal(FileChannel channel) throws IOException {
+
+        channel.truncate(0);
+
+        ByteBuffer header = ByteBuffer.allocate(4).putInt(0, journalMagic);
+
+        while(header.hasRemaining()) channel.write(header, header.position());
+
+        channel.force(true);
+        channel.position(4);
+
+        return 4;
+    }
+
+    /**
+     * Applies records to a workspace until the buffer ends or a record is incomplete or damaged.
+     *
+     * @param in the records
+     * @param workspace the workspace
+     * @return the position after the last whole record
+     */
+    private static long replay(ByteBuffer in, Workspace workspace){
+
+        CRC32 crc = new CRC32();
+
+        // the current record, without its length and checksum
+        ByteBuffer body = in.duplicate();
+
+        while(in.remaining() >= 8){
+
+            int start = in.position();
+            int length = in.getInt();
+            int checksum = in.getInt();
+            int bodyStart = in.position();
+
+            if(length < 1 || length > in.remaining()){
+                return start;
+            }
+
+            body.limit(bodyStart + length).position(bodyStart);
+
+            crc.reset();
+            crc.update(body);
+
+            if((int) crc.getValue() != checksum){
+                return start;
+            }
+
+            body.position(bodyStart);
+            apply(body, workspace);
+
+            in.position(bodyStart + length);
+        }
+
+        return in.position();
+    }
+
+    private static void apply(ByteBuffer in, Workspace workspace){
+
+        byte type = in.get();
+        String name = getString(in);
+
+        switch(type){
+
+            case VALUE:
+
+                double value = in.getDouble();
+                double uncertainty = in.getDouble();
+
+                workspace.putValue(name, new UncertainValue(value, uncertainty, Units.of(in.getLong(), in.getDouble()), false, true));
+                break;
+
+            case SERIES:
+
+                int size = in.getInt();
+                Units units = Units.of(in.getLong(), in.getDouble());
+                double[] values = new double[size];
+                double[] uncertainties = new double[size];
+
+                in.asDoubleBuffer().get(values).get(uncertainties);
+
+                workspace.putValue(name, new UncertainSeries(values, uncertainties, units));
+                break;
+
+            case LOCK:
+
+                String[] tokens = new String[in.getInt()];
+
+                for(int n = 0; n < tokens.length; n++){
+                    tokens[n] = getString(in);
+                }
+
+                workspace.putLock(name, Expression.compile(tokens));
+                break;
+
+            default:
+                workspace.remove(name);
+        }
+    }
+
+    private static String getString(ByteBuffer in){
+
+        int length = in.getInt();
+        String string;
+
+        if(in.hasArray()){
+            string = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+        }else{
+            byte[] bytes = new byte[length];
+            in.duplicate().get(bytes);
+            string = new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        in.position(in.position() + length);
+
+        return string;
+    }
+
+    synchronized void putValue(String name, Quantity value){
+
+        if(failure != null) return;
+
+        encoder.encodeValue(name, value);
+        append();
+    }
+
+    synchronized void putLock(String name, Expression expression){
+
+        if(failure != null) return;
+
+        encoder.encodeLock(name, expression);
+        append();
+    }
+
+    synchronized void remove(String name){
+
+        if(failure != null) return;
+
+        encoder.start(REMOVE, name);
+        encoder.finish();
+        append();
+    }
+
+    /**
+     * Builds records in a buffer that is reused for each one.
+     */
+    private static final class Encoder {
+
+        private final CRC32 crc = new CRC32();
+
+        private ByteBuffer record = ByteBuffer.allocate(4096);
+
+        void encodeValue(String name, Quantity value){
+
+            if(value instanceof UncertainSeries){
+
+                UncertainSeries series = (UncertainSeries) value;
+
+                start(SERIES, name);
+                reserve(20 + series.value.length * 16);
+                record.putInt(series.value.length).putLong(series.units.dimensions).putDouble(series.units.factor);
+                record.asDoubleBuffer().put(series.value).put(series.uncertainty);
+                record.position(record.position() + series.value.length * 16);
+            }else{
+
+                UncertainValue single = (UncertainValue) value;
+
+                start(VALUE, name);
+                reserve(32);
+                record.putDouble(single.value).putDouble(single.uncertainty).putLong(single.units.dimensions).putDouble(single.units.factor);
+            }
+
+            finish();
+        }
+
+        void encodeLock(String name, Expression expression){
+
+            start(LOCK, name);
+            reserve(4);
+            record.putInt(expression.tokens.length);
+
+            for(String token : expression.tokens){
+                putString(token);
+            }
+
+            finish();
+        }
+
+        void start(byte type, String name){
+
+            record.clear();
+            record.position(8);
+            record.put(type);
+            putString(name);
+        }
+
+        private void putString(String string){
+
+            byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+
+            reserve(4 + bytes.length);
+            record.putInt(bytes.length).put(bytes);
+        }
+
+        private void reserve(int bytes){
+
+            if(record.remaining() >= bytes) return;
+
+            ByteBuffer larger = ByteBuffer.allocate(Math.max(record.capacity() * 2, record.position() + bytes));
+            record.flip();
+            larger.put(record);
+            record = larger;
+        }
+
+        /**
+         * Fills in the length and checksum of the record being written, and flips it for writing.
+         */
+        void finish(){
+
+            int length = record.position() - 8;
+
+            crc.reset();
+            crc.update(record.array(), 8, length);
+
+            record.putInt(0, length).putInt(4, (int) crc.getValue());
+            record.flip();
+        }
+    }
+
+    /**
+     * Writes the finished record to the journal, and starts compacting the journal if it has grown too large.
+     */
+    private void append(){
+
+        ByteBuffer record = encoder.record;
+
+        try {
+            journalSize += record.remaining();
+
+            while(record.hasRemaining()) channel.write(record);
+
+            if(syncMillis == 0){
+                channel.force(false);
+            }else{
+                dirty = true;
+            }
+
+            if(journalSize > Math.max(compactMinimum, snapshotSize) && !compacting){
+                compact();
+            }
+        }catch(IOException e){
+            fail(e);
+        }
+    }
+
+    /**
+     * Starts a new journal, and writes the workspace as it is now to a new snapshot in the background.
+     *
+     * Records are only appended while the workspace is being changed, so the workspace as it is now holds exactly the
+     * changes in the journals so far.
+     */
+    private void compact() throws IOException {
+
+        Workspace.Snapshot contents = workspace.snapshot();
+        FileChannel old = channel;
+        long next = generation + 1;
+
+        channel = FileChannel.open(file(directory, "journal", next), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        journalSize = startJournal(channel);
+        forceDirectory(directory);
+
+        generation = next;
+        dirty = false;
+        compacting = true;
+
+        compactor.execute(() -> writeSnapshot(contents, old, next));
+    }
+
+    /**
+     * Closes the previous journal, writes a snapshot after it, and deletes the files it replaces.
+     *
+     * @param contents the workspace when the previous journal ended
+     * @param old the previous journal
+     * @param next the generation of the snapshot
+     */
+    private void writeSnapshot(Workspace.Snapshot contents, FileChannel old, long next){
+
+        Path snapshot = file(directory, "snapshot", next);
+        Path temporary = directory.resolve("snapshot-" + next + ".tmp");
+        Encoder encoder = new Encoder();
+        long size;
+
+        try {
+            try {
+                old.force(false);
+            }finally{
+                old.close();
+            }
+
+            try(FileChannel out = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)){
+
+                ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+                buffer.putInt(snapshotMagic);
+
+                for(String name : contents.labelNames()){
+                    encoder.encodeValue(name, contents.value(name));
+                    buffer = write(out, buffer, encoder.record);
+                }
+
+                for(String name : contents.lockNames()){
+                    encoder.encodeLock(name, contents.lock(name));
+                    buffer = write(out, buffer, encoder.record);
+                }
+
+                buffer.flip();
+
+                while(buffer.hasRemaining()) out.write(buffer);
+
+                out.force(true);
+                size = out.size();
+            }
+
+            Files.move(temporary, snapshot, StandardCopyOption.ATOMIC_MOVE);
+            forceDirectory(directory);
+        }catch(IOException e){
+            fail(e);
+            return;
+        }
+
+        deleteOlder(directory, next);
+
+        synchronized(this){
+            snapshotSize = size;
+            compacting = false;
+        }
+    }
+
+    /**
+     * Forces a directory's entries to the disk, so a file created or renamed in it is still there after a crash.
+     */
+    private static void forceDirectory(Path directory) throws IOException {
+
+        try(FileChannel entries = FileChannel.open(directory, StandardOpenOption.READ)){
+            entries.force(true);
+        }catch(AccessDeniedException e){
+            // some systems, such as Windows, can't open a directory, and make the rename durable themselves
+        }
+    }
+
+    /**
+     * Adds a finished record to a snapshot's buffer, writing the buffer out first if it is full.
+     *
+     * @return the buffer, which is replaced by a larger one for a record that doesn't fit in it
+     */
+    private static ByteBuffer write(FileChannel out, ByteBuffer buffer, ByteBuffer record) throws IOException {
+
+        if(buffer.remaining() < record.remaining()){
+
+            buffer.flip();
+
+            while(buffer.hasRemaining()) out.write(buffer);
+
+            buffer.clear();
+
+            if(buffer.capacity() < record.remaining()){
+                buffer = ByteBuffer.allocate(record.remaining());
+            }
+        }
+
+        return buffer.put(record);
+    }
+
+    /**
+     * Deletes the files of generations before a snapshot, and any snapshot that wasn't finished. Files that can't be
+     * deleted yet, such as a snapshot that is still mapped on some systems, are left for the next time.
+     *
+     * @param directory the directory
+     * @param snapshotGeneration the generation of the newest snapshot
+     */
+    private static void deleteOlder(Path directory, long snapshotGeneration){
+
+        try(DirectoryStream<Path> files = Files.newDirectoryStream(directory, "{snapshot,journal}-*.{bin,tmp}")){
+
+            for(Path file : files){
+
+                long fileGeneration = generation(file);
+
+                if(fileGeneration >= 0 && fileGeneration < snapshotGeneration || file.toString().endsWith(".tmp")){
+                    try {
+                        Files.deleteIfExists(file);
+                    }catch(IOException e){
+                        // left for the next time
+                    }
+                }
+            }
+        }catch(IOException e){
+            // left for the next time
+        }
+    }
+
+    /**
+     * Forces any records written since the last time to the disk.
+     */
+    synchronized void sync(){
+
+        if(!dirty || failure != null) return;
+
+        try {
+            channel.force(false);
+            dirty = false;
+        }catch(IOException e){
+            fail(e);
+        }
+    }
+
+    /**
+     * Stops the journal after an error, which commands that change the workspace then report.
+     */
+    private synchronized void fail(IOException e){
+        failure = e;
+    }
+
+    /**
+     * @return the error that stopped changes from being saved, or null if they are still being saved
+     */
+    synchronized IOException failure(){
+        return failure;
+    }
+
+    /**
+     * Forces any remaining records to the disk and closes the journal.
+     */
+    public void close() throws IOException {
+
+        // the snapshot being written, if any, needs this journal's lock to finish
+        compactor.shutdown();
+
+        try {
+            compactor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        }catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+        }
+
+        synchronized(this){
+
+            if(syncer != null) syncer.shutdown();
+
+            sync();
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,44 @@
+/*
+ *  Copyright ©, 2020, Joseph E. Hand
+ *
+ *  This file is part of PhysiCalc.
+ *
+ *  PhysiCalc is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  PhysiCalc is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with PhysiCalc.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package jehand.physicalc;
+
+/**
+ * Thrown when a lock is found to read itself while it is being evaluated.
+ */
+
+public class LoopException extends IllegalArgumentException {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The lock that was read while it was being evaluated.
+     */
+    private final String lock;
+
+    public LoopException(String lock){
+
+        super("Detected a loop in expression evaluation. (Make sure your locks don't reference each other in a loop.)");
+        this.lock = lock;
+    }
+
+    public String getLock(){
+        return lock;
+    }
+}
@@ -20,279 +20,135 @@
 
 package jehand.physicalc;
 
-import java.util.*;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.file.Paths;
 
 /**
  * Main class for executing the app.
  *
- * Handles input and output, expression evaluation, and help pages.
+ * Handles the console's input and output. Commands are run by a {@link Session}.
  */
 
 public class Main {
 
-    /**
-     * The prefix appended to any output.
-     */
-    private static final String printPrefix = "";
-
     /**
      * The string used tp prompt the user for input.
      */
     private static final String commandPrompt = ">>>: ";
 
     /**
-     * List of forbidden label/lock names
+     * The ways PhysiCalc can be started. A saved workspace only applies to the console.
      */
-    private static final String[] keywords = {"in", "is", "lock", "to", "list", "units", "constants", "labels", "ans", "x", "*", "+", "-", "/", "^"};
+    private static final String usage = "Usage: [--workspace <directory> [--sync always|<milliseconds>]]\n"
+            + "   or: --batch <input file|-> [--out <output file>] [--threads <count>]\n"
+            + "   or: --serve <port> [--threads <count>] [--shared]";
 
-    /**
-     * HashMap for storing any information text, such as license information and help.
-     * Start elements with a exclamation point (!) to prevent command access.
-     */
-    private static final Map<String, String> infoText = ResourceLoader.loadTextResources("/assets/info.txt");
+    public static void main(String[] args){
+
+        if(args.length > 0 && args[0].equals("--batch")){
+            System.exit(BatchRunner.run(args));
+        }
+
+        Metrics.register();
+
+        if(args.length > 0 && args[0].equals("--serve")){
+            System.exit(Server.run(args));
+        }
+
+        Session session;
+
+        try {
+            session = openSession(args);
+        }catch(IllegalArgumentException | ArrayIndexOutOfBoundsException e){
+            System.err.println(usage);
+            System.exit(2);
+            return;
+        }catch(IOException e){
+            System.err.println("Could not open the workspace: " + e.getMessage());
+            System.exit(1);
+            return;
+        }
+
+        new jehand.physicalc.Main(session).run();
+    }
 
     /**
-     * HashMap storing the built-in physical constants.
+     * Creates the console's session, saved in a directory if "--workspace" is given.
+     *
+     * @param args the command line arguments
+     * @return the session
+     * @throws IOException if the saved workspace can't be read
      */
-    private static final Map<String, UncertainValue> physicalConstants = new HashMap<>();
+    private static Session openSession(String[] args) throws IOException {
 
-    private static final String constantsDescriptions;
+        if(args.length == 0){
+            return new Engine().newSession();
+        }
 
-    static{
+        if(!args[0].equals("--workspace")) throw new IllegalArgumentException();
 
-        String[][] constants = ResourceLoader.loadCSVObjectFormat("/assets/constants.txt");
-        StringBuilder description = new StringBuilder();
+        long syncMillis = 1000;
 
-        description.append(String.format("%38s  %-10s%-35s%-15s%s", "Constant:", "Symbol:", "Value:", "Units:", "Description:"));
+        for(int n = 2; n < args.length; n++){
 
-        for(int n = 0; n < constants.length; n++){
+            if(!args[n].equals("--sync")) throw new IllegalArgumentException();
 
-            physicalConstants.put(constants[n][0], new UncertainValue(Double.parseDouble(constants[n][3]), Double.parseDouble(constants[n][4]), Units.parse(constants[n][5]), true, false));
+            String sync = args[++n];
+            syncMillis = sync.equals("always") ? 0 : Long.parseLong(sync);
 
-            description.append(String.format("\n%38s  %-10s%-35s%-15s%s", constants[n][1], constants[n][0], constants[n][3] + "±" + constants[n][4], constants[n][5], constants[n][2]));
+            if(syncMillis < 1 && !sync.equals("always")) throw new IllegalArgumentException();
         }
-        
-        constantsDescriptions = description.toString();
-    }
-
-    public static void main(String[] args){
 
-        new jehand.physicalc.Main().run();
+        return new Engine().openSession(Paths.get(args[1]), syncMillis);
     }
 
     /**
-     * HashMap for storing labelled values.
-     */
-    private Map<String, UncertainValue> values = new HashMap<>();
-
-    /**
-     * HashMap for storing labelled values.
+     * The console's session.
      */
-    private Map<String, String[]> locks = new HashMap<>();
+    private final Session session;
 
+    public Main(){
+        this(new Engine().newSession());
+    }
 
-    /**
-     * Value used by the "ans" keyword.
-     */
-    private UncertainValue storedAnswer = new UncertainValue(0, 0, Units.parse(""));
-
+    private Main(Session session){
+        this.session = session;
+    }
 
     /**
      * Method containing main loop of program.
      */
     public void run(){
 
-        System.out.println(infoText.get("!onStart"));
+        System.out.println(Engine.info("!onStart"));
 
-        Scanner scan = new Scanner(System.in);
+        BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
 
         while(true){
 
             System.out.print(commandPrompt);
 
-            String line = scan.nextLine();
-            String[] args = line.split(" ");
+            String line;
 
-            if(infoText.containsKey(line) && !line.startsWith("!")){
-                System.out.println(infoText.get(line));
-                continue;
+            try {
+                line = in.readLine();
+            }catch(IOException e){
+                break;
             }
 
-
-            // list command: lists all stored variables
-            if(args[0].equals("list")){
-                
-                if(args.length < 2){
-                    System.out.println();
-                }
-                
-                switch(args[1]){
-                    
-                    case "labels":
-                        System.out.println(printPrefix + "List of all values:");
-                        System.out.printf("%-40s%-20s%n", "Name:", "Value:");
-
-                        Set<String> keys = values.keySet();
-                        Iterator<String> iterator = keys.stream().sorted(String.CASE_INSENSITIVE_ORDER).iterator();
-
-                        while(iterator.hasNext()) {
-                            String label = iterator.next();
-                            System.out.printf("%-40s%-20s%n", label, values.get(label).toString());
-                        }
-                        break;
-                    case "constants":
-                        System.out.println(constantsDescriptions);
-                        break;
-                    case "units":
-                        System.out.println(Units.unitDescriptions);
-                        break;
-                }
-
-                continue;
+            if(line == null){
+                break;
             }
 
-            try {
-
-                // is command: assigns a new variable
-                if (args.length >= 3 && args[1].equals("is")) {
-
-                    if(Arrays.stream(keywords).anyMatch((s) -> s.equals(args[0]))){
-                        System.out.println("That name is reserved");
-                        continue;
-                    }
-
-                    if (locks.containsKey(args[0])) {
-                        System.out.println("There is a lock with that name, clear it first");
-                        continue;
-                    }
-
-                    UncertainValue result = evaluateExpression(Arrays.copyOfRange(args, 2, args.length));
-                    storedAnswer = result;
-                    values.put(args[0], result);
-
-                    System.out.println(printPrefix + result.toString());
-
-                    // clear command: clears a stored variable
-                } else if (args.length == 2 && args[0].equals("clear")) {
-
-                    if(values.containsKey(args[1]) || locks.containsKey(args[1])) {
-
-                        values.remove(args[1]);
-                        locks.remove(args[1]);
-
-                        System.out.println(printPrefix + "Deleted label/lock: " + args[1]);
-                    } else {
-                        System.out.println(printPrefix + "That label/lock doesn't exist");
-                    }
-
-                    // in command: prints value in given units
-                } else if (args.length > 2 && args[args.length - 2].equals("in")) {
-
-                    UncertainValue result = evaluateExpression(Arrays.copyOfRange(args, 0, args.length - 2));
-                    storedAnswer = result;
-
-                    System.out.println(printPrefix + result.toString(args[args.length - 1]));
-
-                    // lock command: lock a label to an expression
-                } else if (args.length > 3 && args[0].equals("lock") && args[2].equals("to")) {
-
-                    if(Arrays.stream(keywords).anyMatch((s) -> s.equals(args[1]))){
-                        System.out.println("That name is reserved");
-                        continue;
-                    }
-
-                    if (values.containsKey(args[1])) {
-                        System.out.println("There is a label with that name, clear it first");
-                        continue;
-                    }
-
-                    String[] expression = Arrays.copyOfRange(args, 3, args.length);
-
-                    locks.put(args[1], expression);
-
-                    System.out.println(printPrefix + "Lock set successfully: " + args[1]);
-
-                    // expression: evaluate and print result
-                } else {
-
-                    UncertainValue result = evaluateExpression(args);
-
-                    System.out.println(printPrefix + result.toString());
-                    storedAnswer = result;
-                }
-
-                // error handling
-            }catch(IllegalArgumentException e){
-                System.out.println(printPrefix + "Math Error: " + e.getMessage());
-            }catch(EmptyStackException e){
-                System.out.println(printPrefix + "Math Error: The expression couldn't be evaluated due to lack of numbers. (Make sure all operations have the required number of inputs.)");
-            }catch(StackOverflowError e){
-                System.out.println(printPrefix + "Math Error: Detected a loop in expression evaluation. (Make sure your locks don't reference each other in a loop.)");
-            }
+            System.out.println(session.execute(line));
         }
-    }
 
-    /**
-     * Eveluates an expression using RPN (Reverse Polish Notation).
-     *
-     * @param args the arguments and operations to evaluate
-     * @return the output of the expression
-     */
-    private UncertainValue evaluateExpression(String[] args){
-
-        Stack<UncertainValue> numbers = new Stack<>();
-
-        // temp is used to reverse the order elements are taken off the stack to correct operand order.
-        UncertainValue temp;
-
-        for(int n = 0; n < args.length; n++) {
-
-            switch (args[n]) {
-                case "+":
-                    numbers.push(numbers.pop().add(numbers.pop()));
-                    break;
-                case "-":
-                    temp = numbers.pop();
-                    numbers.push(numbers.pop().subtract(temp));
-                    break;
-                case "*":
-                case "x":
-                    numbers.push(numbers.pop().multiply(numbers.pop()));
-                    break;
-                case "/":
-                    temp = numbers.pop();
-                    numbers.push(numbers.pop().divide(temp));
-                    break;
-                case "ans":
-                    numbers.push(storedAnswer);
-                    break;
-                default:
-
-                    // process exponentiation
-                    if(args[n].startsWith("^")){
-                        numbers.push(numbers.pop().power(Integer.parseInt(args[n].substring(1))));
-                        break;
-                    }
-
-                    if(physicalConstants.containsKey(args[n])){
-                        numbers.push(physicalConstants.get(args[n]));
-                        break;
-                    }
-
-                    if(values.containsKey(args[n])){
-                        numbers.push(values.get(args[n]));
-                        break;
-                    }
-
-                    if(locks.containsKey(args[n])){
-                        numbers.push(evaluateExpression(locks.get(args[n])));
-                        break;
-                    }
-
-                    numbers.push(UncertainValue.parse(args[n]));
-            }
+        try {
+            session.close();
+        }catch(IOException e){
+            System.err.println("Could not save the workspace: " + e.getMessage());
         }
-
-        return numbers.pop();
     }
 }
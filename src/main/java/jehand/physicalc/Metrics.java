@@ -0,0 +1,346 @@
+
+/*
+ *  Copyright ©, 2020, Joseph E. Hand
+ *
+ *  This file is part of PhysiCalc.
+ *
+ *  PhysiCalc is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  PhysiCalc is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with PhysiCalc.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package jehand.physicalc;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * Counts and times the work done by every session in this JVM.
+ *
+ * Every command is timed. Evaluating, parsing values and parsing units can each take less time than reading the
+ * clock twice, so every call to them is counted but only one in 16 is timed. Recording is cheap enough to be on by
+ * default, and running with {@code -Dphysicalc.metrics=false} turns it off.
+ */
+
+final class Metrics implements MetricsMXBean {
+
+    private static final String[] commands = {"expression", "is", "in", "lock", "clear", "list", "info", "load", "mc", "ad", "stats", "sweep", "aggregate"};
+
+    static final boolean enabled = Boolean.parseBoolean(System.getProperty("physicalc.metrics", "true"));
+
+    static final Metrics instance = new Metrics();
+
+    /**
+     * One less than the number of calls per sample, for the timers that are sampled.
+     */
+    private static final int sampleMask = 15;
+
+    /**
+     * The time taken by each kind of command, then by evaluation and parsing.
+     */
+    private final Map<String, Timer> timers;
+
+    final Timer evaluate;
+
+    final Timer valueParse;
+
+    /**
+     * Times parsing units that weren't in the cache.
+     */
+    final Timer unitsParse;
+
+    private final Histogram lockDepth = new Histogram();
+
+    private final LongAdder mathErrors = new LongAdder();
+
+    private final LongAdder loopErrors = new LongAdder();
+
+    private final LongAdder lockCacheHits = new LongAdder();
+
+    private final LongAdder lockCacheMisses = new LongAdder();
+
+    private final LongAdder resultCacheHits = new LongAdder();
+
+    private final LongAdder resultCacheMisses = new LongAdder();
+
+    /**
+     * The units cache's counts when the metrics were last reset, since the cache keeps its own.
+     */
+    private volatile long unitsCacheHits, unitsCacheMisses;
+
+    private Metrics(){
+
+        Map<String, Timer> timers = new LinkedHashMap<>();
+
+        for(String command : commands){
+            timers.put(command, new Timer());
+        }
+
+        timers.put("evaluate", evaluate = new Timer());
+        timers.put("parse value", valueParse = new Timer());
+        timers.put("parse units", unitsParse = new Timer());
+
+        this.timers = Collections.unmodifiableMap(timers);
+    }
+
+    /**
+     * Registers the metrics with the platform MBean server, unless they are already registered.
+     *
+     * Starting the MBean server takes a few hundred milliseconds, so it is done on a background thread.
+     */
+    static void register(){
+
+        if(!enabled) return;
+
+        Thread thread = new Thread(() -> {
+
+            try {
+                ObjectName name = new ObjectName("jehand.physicalc:type=Metrics");
+
+                synchronized(Metrics.class){
+                    if(!ManagementFactory.getPlatformMBeanServer().isRegistered(name)){
+                        ManagementFactory.getPlatformMBeanServer().registerMBean(instance, name);
+                    }
+                }
+            }catch(JMException e){
+                System.err.println("Could not register metrics: " + e.getMessage());
+            }
+        }, "physicalc-metrics");
+
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Starts timing a call, if it is one of the calls that are sampled.
+     *
+     * @return the time to pass to {@link #stop(Timer, long)}, or 0 if this call isn't timed
+     */
+    static long start(){
+
+        if(!enabled || (ThreadLocalRandom.current().nextInt() & sampleMask) != 0) return 0;
+
+        return System.nanoTime();
+    }
+
+    /**
+     * Counts a call, and records its time if {@link #start()} chose to time it.
+     *
+     * @param timer the timer
+     * @param start the value start returned
+     */
+    static void stop(Timer timer, long start){
+
+        if(!enabled) return;
+
+        timer.calls.increment();
+
+        if(start != 0) timer.times.record(System.nanoTime() - start);
+    }
+
+    /**
+     * Records the time taken by a command.
+     *
+     * @param command the kind of command
+     * @param nanos the time it took
+     */
+    void command(String command, long nanos){
+
+        Timer timer = timers.get(command);
+
+        if(enabled && timer != null){
+            timer.calls.increment();
+            timer.times.record(nanos);
+        }
+    }
+
+    /**
+     * Records how many locks were evaluated inside one another by an evaluation that read at least one lock.
+     *
+     * @param depth the depth
+     */
+    void lockDepth(int depth){
+        if(enabled) lockDepth.record(depth);
+    }
+
+    void lockRead(boolean cached){
+
+        if(!enabled) return;
+
+        if(cached){
+            lockCacheHits.increment();
+        }else{
+            lockCacheMisses.increment();
+        }
+    }
+
+    void resultRead(boolean cached){
+
+        if(!enabled) return;
+
+        if(cached){
+            resultCacheHits.increment();
+        }else{
+            resultCacheMisses.increment();
+        }
+    }
+
+    void mathError(){
+        if(enabled) mathErrors.increment();
+    }
+
+    void loopError(){
+        if(enabled) loopErrors.increment();
+    }
+
+    public Map<String, Long> getCounts(){
+
+        Map<String, Long> counts = new LinkedHashMap<>();
+
+        timers.forEach((name, timer) -> counts.put(name, timer.calls.sum()));
+
+        return counts;
+    }
+
+    public Map<String, Double> getMeanMicros(){
+        return micros(Histogram::mean);
+    }
+
+    public Map<String, Double> getP50Micros(){
+        return micros((timer) -> timer.percentile(50));
+    }
+
+    public Map<String, Double> getP99Micros(){
+        return micros((timer) -> timer.percentile(99));
+    }
+
+    public Map<String, Double> getMaxMicros(){
+        return micros(Histogram::max);
+    }
+
+    private Map<String, Double> micros(ToDoubleFunction<Histogram> nanos){
+
+        Map<String, Double> micros = new LinkedHashMap<>();
+
+        timers.forEach((name, timer) -> micros.put(name, nanos.applyAsDouble(timer.times) / 1000));
+
+        return micros;
+    }
+
+    public long getMaxLockDepth(){
+        return lockDepth.max();
+    }
+
+    public long getMathErrors(){
+        return mathErrors.sum();
+    }
+
+    public long getLoopErrors(){
+        return loopErrors.sum();
+    }
+
+    public double getUnitsCacheHitRate(){
+        return rate(Units.parseCacheHits() - unitsCacheHits, Units.parseCacheMisses() - unitsCacheMisses);
+    }
+
+    public double getLockCacheHitRate(){
+        return rate(lockCacheHits.sum(), lockCacheMisses.sum());
+    }
+
+    public long getResultCacheHits(){
+        return resultCacheHits.sum();
+    }
+
+    public long getResultCacheMisses(){
+        return resultCacheMisses.sum();
+    }
+
+    public double getResultCacheHitRate(){
+        return rate(resultCacheHits.sum(), resultCacheMisses.sum());
+    }
+
+    private static double rate(long hits, long misses){
+        return hits + misses == 0 ? 0 : (double) hits / (hits + misses);
+    }
+
+    public String getReport(){
+
+        if(!enabled){
+            return "Metrics are turned off.";
+        }
+
+        StringBuilder report = new StringBuilder();
+        report.append(String.format("%-16s%12s%14s%14s%14s%14s", "Name:", "Count:", "Mean (us):", "50% (us):", "99% (us):", "Max (us):"));
+
+        timers.forEach((name, timer) -> {
+
+            long calls = timer.calls.sum();
+            Histogram times = timer.times;
+
+            if(calls == 0) return;
+
+            if(times.count() == 0){
+                report.append(String.format("%n%-16s%12d%14s%14s%14s%14s", name, calls, "-", "-", "-", "-"));
+                return;
+            }
+
+            report.append(String.format("%n%-16s%12d%14.1f%14.1f%14.1f%14.1f", name, calls, times.mean() / 1000,
+                    times.percentile(50) / 1000.0, times.percentile(99) / 1000.0, times.max() / 1000.0));
+        });
+
+        report.append(String.format("%n%nLock depth:      max %d, 99%% %d", lockDepth.max(), lockDepth.percentile(99)));
+        report.append(String.format("%nUnits cache:     %.1f%% hits", getUnitsCacheHitRate() * 100));
+        report.append(String.format("%nLock cache:      %.1f%% hits", getLockCacheHitRate() * 100));
+        report.append(String.format("%nResult cache:    %.1f%% hits (%d hits, %d misses)", getResultCacheHitRate() * 100, getResultCacheHits(), getResultCacheMisses()));
+        report.append(String.format("%nMath errors:     %d", getMathErrors()));
+        report.append(String.format("%nLoop errors:     %d", getLoopErrors()));
+
+        return report.toString();
+    }
+
+    public void reset(){
+
+        timers.values().forEach(Timer::reset);
+        lockDepth.reset();
+        mathErrors.reset();
+        loopErrors.reset();
+        lockCacheHits.reset();
+        lockCacheMisses.reset();
+        resultCacheHits.reset();
+        resultCacheMisses.reset();
+
+        unitsCacheHits = Units.parseCacheHits();
+        unitsCacheMisses = Units.parseCacheMisses();
+    }
+
+    /**
+     * Counts the calls to something, and holds the times of those that were timed.
+     */
+    static final class Timer {
+
+        private final LongAdder calls = new LongAdder();
+
+        private final Histogram times = new Histogram();
+
+        private void reset(){
+            calls.reset();
+            times.reset();
+        }
+    }
+}
@@ -0,0 +1,97 @@
+
+/*
+ *  Copyright ©, 2020, Joseph E. Hand
+ *
+ *  This file is part of PhysiCalc.
+ *
+ *  PhysiCalc is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  PhysiCalc is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with PhysiCalc.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package jehand.physicalc;
+
+import java.util.Map;
+
+/**
+ * The management interface for PhysiCalc's metrics, registered as "jehand.physicalc:type=Metrics".
+ *
+ * Times are kept for each kind of command ("expression", "is", "in", "lock" and so on), and for "evaluate",
+ * "parse value" and "parse units", which only counts units that weren't already cached. Every map is keyed by those
+ * names. The last three are counted every time but only timed on a sample of calls.
+ */
+
+public interface MetricsMXBean {
+
+    /**
+     * @return the number of times each command or step ran
+     */
+    Map<String, Long> getCounts();
+
+    Map<String, Double> getMeanMicros();
+
+    Map<String, Double> getP50Micros();
+
+    Map<String, Double> getP99Micros();
+
+    Map<String, Double> getMaxMicros();
+
+    /**
+     * @return the most locks that have been evaluated inside one another
+     */
+    long getMaxLockDepth();
+
+    /**
+     * @return the number of commands that failed with a math error, including loops
+     */
+    long getMathErrors();
+
+    /**
+     * @return the number of loops found between locks, when setting them or evaluating them
+     */
+    long getLoopErrors();
+
+    /**
+     * @return the fraction of unit strings found in the parsed units cache
+     */
+    double getUnitsCacheHitRate();
+
+    /**
+     * @return the fraction of lock reads that used a cached result
+     */
+    double getLockCacheHitRate();
+
+    /**
+     * @return the number of expressions whose result was still cached
+     */
+    long getResultCacheHits();
+
+    /**
+     * @return the number of expressions that had to be evaluated, because their result wasn't cached or was stale
+     */
+    long getResultCacheMisses();
+
+    /**
+     * @return the fraction of expressions whose result was still cached
+     */
+    double getResultCacheHitRate();
+
+    /**
+     * @return the same table the "stats" command prints
+     */
+    String getReport();
+
+    /**
+     * Starts counting again from zero.
+     */
+    void reset();
+}
@@ -0,0 +1,236 @@
+/*
+ *  Copyright ©, 2020, Joseph E. Hand
+ *
+ *  This file is part of PhysiCalc.
+ *
+ *  PhysiCalc is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  PhysiCalc is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with PhysiCalc.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package jehand.physicalc;
+
+import java.util.*;
+import java.util.stream.IntStream;
+
+/**
+ * Propagates uncertainty by sampling instead of with the linear formulas, which are poor for large relative
+ * uncertainties and fail at zero.
+ *
+ * The expression's {@link Plan} is evaluated with every input sampled from a normal distribution, with its value as
+ * the mean and its uncertainty as the standard deviation. An input read more than once gets the same sample each
+ * time, so it is correlated with itself.
+ *
+ * The samples are split into blocks of primitive arrays, and the blocks are spread across cores, each part with its
+ * own stream split from one {@link SplittableRandom}.
+ */
+
+final class MonteCarlo {
+
+    static final int maxSamples = 10_000_000;
+
+    /**
+     * The number of samples evaluated together, small enough for every step's block to stay in cache.
+     */
+    private static final int blockSize = 1024;
+
+    /**
+     * The percentiles reported, as fractions.
+     */
+    private static final double[] percentileLevels = {0.025, 0.16, 0.5, 0.84, 0.975};
+
+    private static final String[] percentileNames = {"2.5%", "16%", "50%", "84%", "97.5%"};
+
+    private MonteCarlo(){}
+
+    /**
+     * Evaluates a plan on random samples of its inputs.
+     *
+     * @param plan the plan
+     * @param samples the number of samples
+     * @param units the units of the result
+     * @param random the source of the samples
+     * @return the distribution of the results
+     */
+    static Result sample(Plan plan, int samples, Units units, SplittableRandom random){
+
+        double[] results = new double[samples];
+
+        int parts = Math.min(Runtime.getRuntime().availableProcessors() * 4, (samples + blockSize - 1) / blockSize);
+        SplittableRandom[] randoms = new SplittableRandom[parts];
+
+        for(int n = 0; n < parts; n++){
+            randoms[n] = random.split();
+        }
+
+        IntStream.range(0, parts).parallel().forEach((n) -> sample(plan, randoms[n], results, (int) ((long) n * samples / parts), (int) ((long) (n + 1) * samples / parts)));
+
+        return new Result(results, units);
+    }
+
+    private static void sample(Plan plan, SplittableRandom random, double[] results, int from, int to){
+
+        double[][] blocks = new double[plan.steps][blockSize];
+
+        for(int start = from; start < to; start += blockSize){
+
+            int length = Math.min(blockSize, to - start);
+
+            for(int s = 0; s < plan.steps; s++){
+
+                double[] out = blocks[s];
+
+                if(plan.ops[s] == Plan.INPUT){
+                    fillNormal(random, out, length, plan.mean[s], plan.deviation[s]);
+                    continue;
+                }
+
+                double[] a = blocks[plan.left[s]];
+
+                if(plan.ops[s] == Plan.POWER){
+
+                    for(int n = 0; n < length; n++){
+                        out[n] = Math.pow(a[n], plan.right[s]);
+                    }
+                    continue;
+                }
+
+                double[] b = blocks[plan.right[s]];
+
+                switch(plan.ops[s]){
+                    case Plan.ADD:
+                        for(int n = 0; n < length; n++) out[n] = a[n] + b[n];
+                        break;
+                    case Plan.SUBTRACT:
+                        for(int n = 0; n < length; n++) out[n] = a[n] - b[n];
+                        break;
+                    case Plan.MULTIPLY:
+                        for(int n = 0; n < length; n++) out[n] = a[n] * b[n];
+                        break;
+                    default:
+                        for(int n = 0; n < length; n++) out[n] = a[n] / b[n];
+                }
+            }
+
+            System.arraycopy(blocks[plan.result], 0, results, start, length);
+        }
+    }
+
+    /**
+     * Fills an array with normally distributed samples, using the polar method.
+     */
+    private static void fillNormal(SplittableRandom random, double[] out, int length, double mean, double deviation){
+
+        if(deviation == 0){
+            Arrays.fill(out, 0, length, mean);
+            return;
+        }
+
+        for(int n = 0; n < length; n += 2){
+
+            double u, v, s;
+
+            do {
+                u = random.nextDouble() * 2 - 1;
+                v = random.nextDouble() * 2 - 1;
+                s = u * u + v * v;
+            }while(s >= 1 || s == 0);
+
+            double scale = deviation * Math.sqrt(-2 * Math.log(s) / s);
+
+            out[n] = mean + u * scale;
+
+            if(n + 1 < length) out[n + 1] = mean + v * scale;
+        }
+    }
+
+    /**
+     * The distribution of an expression's result.
+     */
+    static final class Result {
+
+        final int samples;
+
+        final double mean;
+
+        final double standardDeviation;
+
+        /**
+         * The results at each of the reported percentiles.
+         */
+        final double[] percentiles;
+
+        final Units units;
+
+        /**
+         * Summarises the results. The array is sorted in place.
+         */
+        Result(double[] results, Units units){
+
+            this.samples = results.length;
+            this.units = units;
+
+            double sum = 0;
+
+            for(double r : results) sum += r;
+
+            this.mean = sum / samples;
+
+            double squares = 0;
+
+            for(double r : results) squares += (r - mean) * (r - mean);
+
+            this.standardDeviation = Math.sqrt(squares / (samples - 1));
+
+            Arrays.parallelSort(results);
+
+            this.percentiles = new double[percentileLevels.length];
+
+            for(int n = 0; n < percentileLevels.length; n++){
+
+                double position = percentileLevels[n] * (samples - 1);
+                int below = (int) position;
+                int above = Math.min(below + 1, samples - 1);
+
+                percentiles[n] = results[below] + (results[above] - results[below]) * (position - below);
+            }
+        }
+
+        /**
+         * @return the mean, with the standard deviation as its uncertainty
+         */
+        UncertainValue summary(){
+            return new UncertainValue(mean, standardDeviation, units, false, true);
+        }
+
+        /**
+         * Converts the result to a string: 9.81+-0.02 m/s^2 from 1000 samples (2.5%: 9.77, 16%: 9.79, ...).
+         *
+         * @return the string
+         */
+        public String toString(){
+
+            double factor = units.getDisplayFactor();
+
+            StringBuilder out = new StringBuilder(160).append(summary().toString().trim()).append(" from ").append(samples).append(" samples (");
+
+            for(int n = 0; n < percentiles.length; n++){
+
+                if(n > 0) out.append(", ");
+
+                out.append(percentileNames[n]).append(": ").append(percentiles[n] / factor);
+            }
+
+            return out.append(')').toString();
+        }
+    }
+}
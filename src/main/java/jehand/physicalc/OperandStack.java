@@ -0,0 +1,265 @@
+
+/*
+ *  Copyright ©, 2020, Joseph E. Hand
+ *
+ *  This file is part of PhysiCalc.
+ *
+ *  PhysiCalc is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  PhysiCalc is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with PhysiCalc.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package jehand.physicalc;
+
+import java.util.Arrays;
+import java.util.EmptyStackException;
+
+/**
+ * The operand stack used to evaluate expressions.
+ *
+ * Single values are kept as their parts in parallel arrays, so arithmetic on them creates no objects. Only series are
+ * kept as objects, and an operation falls back to {@link Quantity}'s methods when one of its operands is a series.
+ * The rules for single values are the same ones {@link UncertainValue} uses, including which operand's units the
+ * result keeps, so both ways give exactly the same results.
+ */
+
+final class OperandStack {
+
+    private double[] value = new double[16];
+    private double[] uncertainty = new double[16];
+    private long[] dimensions = new long[16];
+    private double[] factor = new double[16];
+
+    /**
+     * The series at each position, or null where the operand is a single value.
+     */
+    private Quantity[] series = new Quantity[16];
+
+    private int size;
+
+    int size(){
+        return size;
+    }
+
+    /**
+     * Pushes a value or series.
+     *
+     * @param quantity the value or series
+     */
+    void push(Quantity quantity){
+
+        if(quantity instanceof UncertainValue){
+
+            UncertainValue v = (UncertainValue) quantity;
+            push(v.value, v.uncertainty, v.units.dimensions, v.units.factor);
+            return;
+        }
+
+        grow();
+        series[size++] = quantity;
+    }
+
+    private void push(double value, double uncertainty, long dimensions, double factor){
+
+        grow();
+
+        this.value[size] = value;
+        this.uncertainty[size] = uncertainty;
+        this.dimensions[size] = dimensions;
+        this.factor[size] = factor;
+        size++;
+    }
+
+    private void grow(){
+
+        if(size < value.length) return;
+
+        int length = value.length * 2;
+
+        value = Arrays.copyOf(value, length);
+        uncertainty = Arrays.copyOf(uncertainty, length);
+        dimensions = Arrays.copyOf(dimensions, length);
+        factor = Arrays.copyOf(factor, length);
+        series = Arrays.copyOf(series, length);
+    }
+
+    /**
+     * Pops the top operand as an object.
+     *
+     * @param base the start of the current frame's operands
+     * @return the operand
+     * @throws EmptyStackException if the frame has no operands left
+     */
+    Quantity pop(int base){
+
+        check(base, 1);
+
+        Quantity result = get(--size);
+        series[size] = null;
+
+        return result;
+    }
+
+    /**
+     * Gets the top operand as an object, leaving it on the stack.
+     *
+     * @param base the start of the current frame's operands
+     * @return the operand
+     * @throws EmptyStackException if the frame has no operands
+     */
+    Quantity peek(int base){
+
+        check(base, 1);
+
+        return get(size - 1);
+    }
+
+    /**
+     * Drops every operand from base up.
+     *
+     * @param base the new size of the stack
+     */
+    void truncate(int base){
+
+        Arrays.fill(series, base, size, null);
+        size = base;
+    }
+
+    /**
+     * Replaces the top two operands with their sum, difference, product or quotient.
+     *
+     * As in {@link Expression}, the top operand is the right hand side of a difference or quotient.
+     *
+     * @param op the operation, one of Expression's ADD, SUBTRACT, MULTIPLY or DIVIDE
+     * @param base the start of the current frame's operands
+     * @throws EmptyStackException if the frame has less than two operands
+     * @throws IllegalArgumentException if the units don't allow the operation
+     */
+    void apply(byte op, int base){
+
+        check(base, 2);
+
+        int top = size - 1;
+        int second = size - 2;
+
+        if(series[top] != null || series[second] != null){
+            applyObjects(op);
+            return;
+        }
+
+        double topValue = value[top];
+        double topUncertainty = uncertainty[top];
+        double secondValue = value[second];
+        double secondUncertainty = uncertainty[second];
+
+        switch(op){
+            case Expression.ADD:
+            case Expression.SUBTRACT:
+
+                if(dimensions[top] != dimensions[second]){
+                    throw new IllegalArgumentException("Can't add/subtract values with different units.");
+                }
+
+                if(op == Expression.ADD){
+                    value[second] = topValue + secondValue;
+                    dimensions[second] = dimensions[top];
+                    factor[second] = factor[top];
+                }else{
+                    value[second] = secondValue - topValue;
+                }
+
+                uncertainty[second] = topUncertainty + secondUncertainty;
+                break;
+            case Expression.MULTIPLY:
+                dimensions[second] = Units.combine(dimensions[second], dimensions[top], 1);
+                value[second] = topValue * secondValue;
+                uncertainty[second] = UncertainValue.productUncertainty(topValue, topUncertainty, secondValue, secondUncertainty);
+                factor[second] = factor[top] * factor[second];
+                break;
+            default:
+                dimensions[second] = Units.combine(dimensions[second], dimensions[top], -1);
+                value[second] = secondValue / topValue;
+                uncertainty[second] = UncertainValue.quotientUncertainty(secondValue, secondUncertainty, topValue, topUncertainty);
+                factor[second] = factor[second] / factor[top];
+        }
+
+        size--;
+    }
+
+    private void applyObjects(byte op){
+
+        Quantity top = pop(0);
+        Quantity second = pop(0);
+
+        switch(op){
+            case Expression.ADD:
+                push(top.add(second));
+                break;
+            case Expression.SUBTRACT:
+                push(second.subtract(top));
+                break;
+            case Expression.MULTIPLY:
+                push(top.multiply(second));
+                break;
+            default:
+                push(second.divide(top));
+        }
+    }
+
+    /**
+     * Raises the top operand to a power.
+     *
+     * @param power the power
+     * @param base the start of the current frame's operands
+     * @throws EmptyStackException if the frame has no operands
+     */
+    void power(int power, int base){
+
+        check(base, 1);
+
+        int top = size - 1;
+
+        if(series[top] != null){
+            series[top] = series[top].power(power);
+            return;
+        }
+
+        dimensions[top] = Units.combine(0, dimensions[top], power);
+
+        double result = Math.pow(value[top], power);
+
+        uncertainty[top] = UncertainValue.powerUncertainty(value[top], uncertainty[top], power, result);
+        value[top] = result;
+        factor[top] = Math.pow(factor[top], power);
+    }
+
+    private Quantity get(int n){
+
+        if(series[n] != null) return series[n];
+
+        return new UncertainValue(value[n], uncertainty[n], Units.of(dimensions[n], factor[n]), false, true);
+    }
+
+    /**
+     * Checks that the current frame has enough operands for an operation.
+     *
+     * @param base the start of the current frame's operands
+     * @param operands the number of operands needed
+     * @throws EmptyStackException if the frame has fewer operands
+     */
+    void check(int base, int operands){
+
+        if(size - base < operands){
+            throw new EmptyStackException();
+        }
+    }
+}
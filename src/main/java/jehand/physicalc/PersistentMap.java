@@ -0,0 +1,394 @@
+
+/*
+ *  Copyright ©, 2020, Joseph E. Hand
+ *
+ *  This file is part of PhysiCalc.
+ *
+ *  PhysiCalc is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  PhysiCalc is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with PhysiCalc.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package jehand.physicalc;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.BiConsumer;
+
+/**
+ * An immutable hash map, where adding or removing a key gives a new map that shares all but a few nodes with the old
+ * one.
+ *
+ * The map is a hash array mapped trie: each level of the tree is indexed by five bits of the key's hash, and each
+ * node only stores the children it has, found through a bitmap. A change copies the nodes on the path to its key, so
+ * it takes time and memory proportional to the depth, which is at most seven and usually two or three. Keys with the
+ * same hash share a collision node. Values can't be null.
+ *
+ * @param <K> the type of the keys
+ * @param <V> the type of the values
+ */
+
+final class PersistentMap<K, V> {
+
+    private static final PersistentMap<?, ?> empty = new PersistentMap<>(BitmapNode.empty, 0);
+
+    private final Node root;
+
+    private final int size;
+
+    private PersistentMap(Node root, int size){
+        this.root = root;
+        this.size = size;
+    }
+
+    @SuppressWarnings("unchecked")
+    static <K, V> PersistentMap<K, V> empty(){
+        return (PersistentMap<K, V>) empty;
+    }
+
+    int size(){
+        return size;
+    }
+
+    boolean isEmpty(){
+        return size == 0;
+    }
+
+    /**
+     * @param key the key
+     * @return the value, or null if the key isn't in the map
+     */
+    @SuppressWarnings("unchecked")
+    V get(Object key){
+
+        int hash = key.hashCode();
+        Node node = root;
+
+        // walks down the bitmap nodes in a loop, since this is on the path of every label read
+        for(int shift = 0; node instanceof BitmapNode; shift += 5){
+
+            BitmapNode bitmapNode = (BitmapNode) node;
+            int bit = 1 << ((hash >>> shift) & 31);
+
+            if((bitmapNode.bitmap & bit) == 0) return null;
+
+            int n = 2 * bitmapNode.index(bit);
+            Object k = bitmapNode.array[n];
+
+            if(k != null) return k == key || key.equals(k) ? (V) bitmapNode.array[n + 1] : null;
+
+            node = (Node) bitmapNode.array[n + 1];
+        }
+
+        return (V) node.get(hash, key, 0);
+    }
+
+    boolean containsKey(Object key){
+        return get(key) != null;
+    }
+
+    /**
+     * @param key the key
+     * @param value the value, which can't be null
+     * @return a map with the key set to the value, or this map if it already was
+     */
+    PersistentMap<K, V> put(K key, V value){
+
+        boolean[] added = new boolean[1];
+        Node root = this.root.put(key.hashCode(), key, value, 0, added);
+
+        return root == this.root ? this : new PersistentMap<>(root, added[0] ? size + 1 : size);
+    }
+
+    /**
+     * @param key the key
+     * @return a map without the key, or this map if it didn't have it
+     */
+    PersistentMap<K, V> remove(Object key){
+
+        Node root = this.root.remove(key.hashCode(), key, 0);
+
+        if(root == this.root) return this;
+
+        return root == null ? empty() : new PersistentMap<>(root, size - 1);
+    }
+
+    @SuppressWarnings("unchecked")
+    void forEach(BiConsumer<? super K, ? super V> action){
+        root.forEach((BiConsumer<Object, Object>) action);
+    }
+
+    /**
+     * @return the keys, in no particular order
+     */
+    List<K> keys(){
+
+        List<K> keys = new ArrayList<>(size);
+        forEach((key, value) -> keys.add(key));
+
+        return keys;
+    }
+
+    private abstract static class Node {
+
+        abstract Object get(int hash, Object key, int shift);
+
+        /**
+         * @param added set to true if the key wasn't in the node
+         * @return the changed node, or this node if nothing changed
+         */
+        abstract Node put(int hash, Object key, Object value, int shift, boolean[] added);
+
+        /**
+         * @return the changed node, this node if the key wasn't in it, or null if the node is now empty
+         */
+        abstract Node remove(int hash, Object key, int shift);
+
+        abstract void forEach(BiConsumer<Object, Object> action);
+    }
+
+    /**
+     * A node holding an entry or a child for each five bit index in its bitmap. The array holds a key and a value for
+     * each entry, or null and the child node for each child, in the order of the indices.
+     */
+    private static final class BitmapNode extends Node {
+
+        static final BitmapNode empty = new BitmapNode(0, new Object[0]);
+
+        final int bitmap;
+
+        final Object[] array;
+
+        BitmapNode(int bitmap, Object[] array){
+            this.bitmap = bitmap;
+            this.array = array;
+        }
+
+        private int index(int bit){
+            return Integer.bitCount(bitmap & (bit - 1));
+        }
+
+        Object get(int hash, Object key, int shift){
+
+            int bit = 1 << ((hash >>> shift) & 31);
+
+            if((bitmap & bit) == 0) return null;
+
+            int n = 2 * index(bit);
+            Object k = array[n];
+
+            if(k == null) return ((Node) array[n + 1]).get(hash, key, shift + 5);
+
+            return key.equals(k) ? array[n + 1] : null;
+        }
+
+        Node put(int hash, Object key, Object value, int shift, boolean[] added){
+
+            int bit = 1 << ((hash >>> shift) & 31);
+            int n = 2 * index(bit);
+
+            if((bitmap & bit) == 0){
+
+                Object[] array = new Object[this.array.length + 2];
+
+                System.arraycopy(this.array, 0, array, 0, n);
+                array[n] = key;
+                array[n + 1] = value;
+                System.arraycopy(this.array, n, array, n + 2, this.array.length - n);
+
+                added[0] = true;
+
+                return new BitmapNode(bitmap | bit, array);
+            }
+
+            Object k = array[n];
+            Object v = array[n + 1];
+
+            if(k == null){
+
+                Node child = ((Node) v).put(hash, key, value, shift + 5, added);
+
+                return child == v ? this : with(n + 1, child);
+            }
+
+            if(key.equals(k)){
+                return v == value ? this : with(n + 1, value);
+            }
+
+            added[0] = true;
+
+            Node child = pair(shift + 5, k, v, hash, key, value);
+            Object[] array = this.array.clone();
+
+            array[n] = null;
+            array[n + 1] = child;
+
+            return new BitmapNode(bitmap, array);
+        }
+
+        Node remove(int hash, Object key, int shift){
+
+            int bit = 1 << ((hash >>> shift) & 31);
+
+            if((bitmap & bit) == 0) return this;
+
+            int n = 2 * index(bit);
+            Object k = array[n];
+
+            if(k == null){
+
+                Node child = ((Node) array[n + 1]).remove(hash, key, shift + 5);
+
+                if(child == array[n + 1]) return this;
+
+                if(child != null) return with(n + 1, child);
+
+            }else if(!key.equals(k)){
+                return this;
+            }
+
+            if(bitmap == bit) return null;
+
+            Object[] array = new Object[this.array.length - 2];
+
+            System.arraycopy(this.array, 0, array, 0, n);
+            System.arraycopy(this.array, n + 2, array, n, array.length - n);
+
+            return new BitmapNode(bitmap & ~bit, array);
+        }
+
+        private BitmapNode with(int n, Object element){
+
+            Object[] array = this.array.clone();
+            array[n] = element;
+
+            return new BitmapNode(bitmap, array);
+        }
+
+        void forEach(BiConsumer<Object, Object> action){
+
+            for(int n = 0; n < array.length; n += 2){
+
+                if(array[n] == null){
+                    ((Node) array[n + 1]).forEach(action);
+                }else{
+                    action.accept(array[n], array[n + 1]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Makes a node holding two entries, whose hashes are the same up to the given shift.
+     */
+    private static Node pair(int shift, Object key1, Object value1, int hash2, Object key2, Object value2){
+
+        int hash1 = key1.hashCode();
+
+        if(hash1 == hash2){
+            return new CollisionNode(hash1, new Object[]{key1, value1, key2, value2});
+        }
+
+        boolean[] added = new boolean[1];
+
+        return BitmapNode.empty.put(hash1, key1, value1, shift, added).put(hash2, key2, value2, shift, added);
+    }
+
+    /**
+     * A node holding keys that all have the same hash, as alternating keys and values.
+     */
+    private static final class CollisionNode extends Node {
+
+        final int hash;
+
+        final Object[] array;
+
+        CollisionNode(int hash, Object[] array){
+            this.hash = hash;
+            this.array = array;
+        }
+
+        private int find(Object key){
+
+            for(int n = 0; n < array.length; n += 2){
+                if(key.equals(array[n])) return n;
+            }
+
+            return -1;
+        }
+
+        Object get(int hash, Object key, int shift){
+
+            if(hash != this.hash) return null;
+
+            int n = find(key);
+
+            return n < 0 ? null : array[n + 1];
+        }
+
+        Node put(int hash, Object key, Object value, int shift, boolean[] added){
+
+            if(hash != this.hash){
+
+                // the new key goes beside this node, in a bitmap node at this level
+                BitmapNode parent = new BitmapNode(1 << ((this.hash >>> shift) & 31), new Object[]{null, this});
+
+                return parent.put(hash, key, value, shift, added);
+            }
+
+            int n = find(key);
+
+            if(n >= 0){
+
+                if(array[n + 1] == value) return this;
+
+                Object[] array = this.array.clone();
+                array[n + 1] = value;
+
+                return new CollisionNode(hash, array);
+            }
+
+            Object[] array = new Object[this.array.length + 2];
+
+            System.arraycopy(this.array, 0, array, 0, this.array.length);
+            array[this.array.length] = key;
+            array[this.array.length + 1] = value;
+
+            added[0] = true;
+
+            return new CollisionNode(hash, array);
+        }
+
+        Node remove(int hash, Object key, int shift){
+
+            int n = hash == this.hash ? find(key) : -1;
+
+            if(n < 0) return this;
+
+            if(array.length == 2) return null;
+
+            Object[] array = new Object[this.array.length - 2];
+
+            System.arraycopy(this.array, 0, array, 0, n);
+            System.arraycopy(this.array, n + 2, array, n, array.length - n);
+
+            return new CollisionNode(hash, array);
+        }
+
+        void forEach(BiConsumer<Object, Object> action){
+
+            for(int n = 0; n < array.length; n += 2){
+                action.accept(array[n], array[n + 1]);
+            }
+        }
+    }
+}
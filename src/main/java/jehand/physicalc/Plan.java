@@ -0,0 +1,234 @@
+/*
+ *  Copyright ©, 2020, Joseph E. Hand
+ *
+ *  This file is part of PhysiCalc.
+ *
+ *  PhysiCalc is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  PhysiCalc is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with PhysiCalc.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package jehand.physicalc;
+
+import java.util.*;
+
+/**
+ * An expression flattened into one step per operation, for evaluating it in ways other than the normal one.
+ *
+ * Locks are read through, and each lock is only planned once however many times it is read. Every label, constant,
+ * literal, and "ans" the expression reads becomes an input step, and an input read more than once is the same step
+ * each time, so the plan shows exactly which results share an input.
+ */
+
+final class Plan {
+
+    static final byte INPUT = 0;
+    static final byte ADD = 1;
+    static final byte SUBTRACT = 2;
+    static final byte MULTIPLY = 3;
+    static final byte DIVIDE = 4;
+    static final byte POWER = 5;
+
+    /*
+     * The steps of the plan. Each step writes its own slot, so step n's result is read as slot n. Inputs keep their
+     * value and uncertainty in standard units and the token they were read from, and POWER steps keep their exponent
+     * in right.
+     */
+    byte[] ops = new byte[16];
+    int[] left = new int[16];
+    int[] right = new int[16];
+    double[] mean = new double[16];
+    double[] deviation = new double[16];
+    String[] names = new String[16];
+    int steps;
+
+    /**
+     * The slot holding the result.
+     */
+    int result;
+
+    private Plan(){}
+
+    /**
+     * Plans an expression.
+     *
+     * The expression should already have been evaluated normally, so the plan doesn't have to check units or the
+     * number of operands.
+     *
+     * @param expression the expression
+     * @param workspace the snapshot of the labels and locks it reads
+     * @param answer the value of "ans"
+     * @return the plan
+     * @throws IllegalArgumentException if the expression reads a series
+     */
+    static Plan build(Expression expression, Workspace.Snapshot workspace, Quantity answer){
+
+        Plan plan = new Plan();
+
+        // the slot of each label, lock, constant, and "ans" already planned
+        Map<String, Integer> named = new HashMap<>();
+        // the slots of the literals in each expression, so a lock's literals are shared by everything reading it
+        Map<Expression, int[]> literals = new IdentityHashMap<>();
+        Set<String> planning = new HashSet<>();
+
+        ArrayList<Integer> slots = new ArrayList<>();
+        ArrayDeque<Object[]> frames = new ArrayDeque<>();
+
+        String lock = null;
+        Expression current = expression;
+        int base = 0;
+        int n = 0;
+
+        while(true){
+
+            if(n == current.length()){
+
+                int slot = slots.get(slots.size() - 1);
+                slots.subList(base, slots.size()).clear();
+
+                if(lock == null){
+                    plan.result = slot;
+                    return plan;
+                }
+
+                named.put(lock, slot);
+                planning.remove(lock);
+
+                Object[] frame = frames.pop();
+                lock = (String) frame[0];
+                current = (Expression) frame[1];
+                base = (Integer) frame[2];
+                n = (Integer) frame[3];
+
+                slots.add(slot);
+                continue;
+            }
+
+            int token = n++;
+            int b;
+
+            switch(current.ops[token]){
+                case Expression.ADD:
+                    b = slots.remove(slots.size() - 1);
+                    slots.add(plan.step(ADD, slots.remove(slots.size() - 1), b));
+                    break;
+                case Expression.SUBTRACT:
+                    b = slots.remove(slots.size() - 1);
+                    slots.add(plan.step(SUBTRACT, slots.remove(slots.size() - 1), b));
+                    break;
+                case Expression.MULTIPLY:
+                    b = slots.remove(slots.size() - 1);
+                    slots.add(plan.step(MULTIPLY, slots.remove(slots.size() - 1), b));
+                    break;
+                case Expression.DIVIDE:
+                    b = slots.remove(slots.size() - 1);
+                    slots.add(plan.step(DIVIDE, slots.remove(slots.size() - 1), b));
+                    break;
+                case Expression.POWER:
+                    slots.add(plan.step(POWER, slots.remove(slots.size() - 1), current.power(token)));
+                    break;
+                case Expression.ANSWER:
+                    slots.add(plan.input(named, "ans", answer));
+                    break;
+                case Expression.CONSTANT:
+                    slots.add(plan.input(named, current.tokens[token], current.values[token]));
+                    break;
+                default:
+
+                    String name = current.tokens[token];
+                    Quantity value = workspace.value(name);
+
+                    if(value != null){
+                        slots.add(plan.input(named, name, value));
+                        break;
+                    }
+
+                    Expression locked = workspace.lock(name);
+
+                    if(locked == null){
+
+                        int[] literal = literals.computeIfAbsent(current, (e) -> new int[e.length()]);
+
+                        if(literal[token] == 0){
+                            literal[token] = plan.input(current.tokens[token], current.literal(token)) + 1;
+                        }
+
+                        slots.add(literal[token] - 1);
+                        break;
+                    }
+
+                    Integer planned = named.get(name);
+
+                    if(planned != null){
+                        slots.add(planned);
+                        break;
+                    }
+
+                    if(!planning.add(name)){
+                        throw new LoopException(name);
+                    }
+
+                    frames.push(new Object[]{lock, current, base, n});
+
+                    lock = name;
+                    current = locked;
+                    base = slots.size();
+                    n = 0;
+            }
+        }
+    }
+
+    private int input(Map<String, Integer> named, String name, Quantity value){
+
+        Integer slot = named.get(name);
+
+        if(slot == null){
+            slot = input(name, value);
+            named.put(name, slot);
+        }
+
+        return slot;
+    }
+
+    private int input(String name, Quantity value){
+
+        if(!(value instanceof UncertainValue)){
+            throw new IllegalArgumentException("Only single values can be propagated this way, not series.");
+        }
+
+        int slot = step(INPUT, 0, 0);
+
+        names[slot] = name;
+        mean[slot] = ((UncertainValue) value).value;
+        deviation[slot] = ((UncertainValue) value).uncertainty;
+
+        return slot;
+    }
+
+    private int step(byte op, int a, int b){
+
+        if(steps == ops.length){
+            ops = Arrays.copyOf(ops, steps * 2);
+            left = Arrays.copyOf(left, steps * 2);
+            right = Arrays.copyOf(right, steps * 2);
+            mean = Arrays.copyOf(mean, steps * 2);
+            deviation = Arrays.copyOf(deviation, steps * 2);
+            names = Arrays.copyOf(names, steps * 2);
+        }
+
+        ops[steps] = op;
+        left[steps] = a;
+        right[steps] = b;
+
+        return steps++;
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ *  Copyright ©, 2020, Joseph E. Hand
+ *
+ *  This file is part of PhysiCalc.
+ *
+ *  PhysiCalc is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  PhysiCalc is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with PhysiCalc.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package jehand.physicalc;
+
+/**
+ * A value that can be used in an expression: a single {@link UncertainValue} or a whole {@link UncertainSeries}.
+ *
+ * Operations between a series and a single value apply the single value to every element of the series.
+ */
+
+public interface Quantity {
+
+    /**
+     * Adds this value to other.
+     *
+     * @param other the other value to add
+     * @return the sum
+     */
+    Quantity add(Quantity other);
+
+    /**
+     * Subtracts the other value from this one.
+     *
+     * @param other the value to subtract
+     * @return the difference
+     */
+    Quantity subtract(Quantity other);
+
+    /**
+     * Multiplies this value and the other one.
+     *
+     * @param other the other value to multiply
+     * @return the product
+     */
+    Quantity multiply(Quantity other);
+
+    /**
+     * Divides this value by the other one.
+     *
+     * @param other the value to divide by.
+     * @return the quotient
+     */
+    Quantity divide(Quantity other);
+
+    /**
+     * Raises this value to a power.
+     *
+     * @param power the power
+     * @return the result
+     */
+    Quantity power(int power);
+
+    /**
+     * @return the units of the value
+     */
+    Units getUnits();
+
+    /**
+     * Converts this value to a string in the specified units.
+     *
+     * @param units the units to output in.
+     * @return the string
+     */
+    String toString(String units);
+}
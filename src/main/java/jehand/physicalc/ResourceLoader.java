@@ -46,20 +46,29 @@ public class ResourceLoader {
 
     public static HashMap<String, String> loadTextResources(String fileName){
 
-        Scanner scan;
+        InputStream f = ResourceLoader.class.getResourceAsStream(fileName);
 
-        HashMap<String, String> resources = new HashMap<>();
+        if(f == null){
+
+            System.err.println("Could not load resources: \"" + fileName + "\"");
+            return new HashMap<>();
+        }
+
+        return loadTextResources(f);
+    }
 
-        try{
+    /**
+     * Loads key value pairs from a stream, in the format described by {@link #loadTextResources(String)}.
+     *
+     * @param in the stream, which is read to the end
+     * @return The key-value pairs extracted from the stream.
+     */
 
-            InputStream f = ResourceLoader.class.getResourceAsStream(fileName);
-            scan = new Scanner(f);
+    static HashMap<String, String> loadTextResources(InputStream in){
 
-        }catch(Exception e){
+        Scanner scan = new Scanner(in, "UTF-8");
 
-            System.out.println("Could not load resources: \"" + fileName + "\"");
-            return resources;
-        }
+        HashMap<String, String> resources = new HashMap<>();
 
         List<String> contents = new ArrayList<>();
 
@@ -98,19 +107,28 @@ public class ResourceLoader {
 
     public static String[][] loadCSVObjectFormat(String fileName){
 
-        Scanner scan;
+        InputStream f = ResourceLoader.class.getResourceAsStream(fileName);
 
-        try{
+        if(f == null){
 
-            InputStream f = ResourceLoader.class.getResourceAsStream(fileName);
-            scan = new Scanner(f);
-
-        }catch(Exception e){
-
-            System.out.println("Could not load resources: \"" + fileName + "\"");
+            System.err.println("Could not load resources: \"" + fileName + "\"");
             return null;
         }
 
+        return loadCSVObjectFormat(f);
+    }
+
+    /**
+     * Loads comma-separated-values from a stream into a two-dimensional array.
+     *
+     * @param in the stream, which is read to the end
+     * @return The array generated form the stream.
+     */
+
+    static String[][] loadCSVObjectFormat(InputStream in){
+
+        Scanner scan = new Scanner(in, "UTF-8");
+
         List<String[]> values = new ArrayList<>();
 
         while(scan.hasNextLine()){
@@ -0,0 +1,129 @@
+
+/*
+ *  Copyright ©, 2020, Joseph E. Hand
+ *
+ *  This file is part of PhysiCalc.
+ *
+ *  PhysiCalc is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  PhysiCalc is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with PhysiCalc.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package jehand.physicalc;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * The results of whole expressions evaluated on a workspace, so repeating one skips compiling and evaluating it.
+ *
+ * Results are keyed by the expression's tokens joined by single spaces. Each result keeps the version of every name
+ * it read, following locks through to the names they read, and is only used while all of those versions are still
+ * the same, so changing, locking or clearing a name makes the results that read it stale without searching for them.
+ * A name that was read as a literal, such as "5m", is checked the same way, in case it has since become a label.
+ *
+ * Results that read "ans" aren't kept, since it changes after almost every command, and neither are long series,
+ * so the cache can't hold much memory.
+ */
+
+final class ResultCache {
+
+    private static final int capacity = 4096;
+
+    /**
+     * The most elements of a series result that is kept.
+     */
+    private static final int maxSeriesSize = 1 << 12;
+
+    private final BoundedCache<String, Entry> entries = new BoundedCache<>(capacity);
+
+    /**
+     * Gets the result of an expression, if it was kept and nothing it read has changed.
+     *
+     * @param key the expression's tokens, joined by single spaces
+     * @param snapshot the labels and locks to evaluate it on
+     * @return the result, or null if it has to be evaluated
+     */
+    Quantity get(String key, Workspace.Snapshot snapshot){
+
+        Entry entry = entries.getIfPresent(key);
+        boolean current = entry != null;
+
+        for(int n = 0; current && n < entry.names.length; n++){
+            current = snapshot.version(entry.names[n]) == entry.versions[n];
+        }
+
+        Metrics.instance.resultRead(current);
+
+        return current ? entry.result : null;
+    }
+
+    /**
+     * Keeps the result of an expression.
+     *
+     * @param key the expression's tokens, joined by single spaces
+     * @param expression the compiled expression
+     * @param snapshot the labels and locks it was evaluated on
+     * @param result the result, which must have been evaluated without errors
+     */
+    void put(String key, Expression expression, Workspace.Snapshot snapshot, Quantity result){
+
+        if(result instanceof UncertainSeries && ((UncertainSeries) result).size() > maxSeriesSize) return;
+
+        Set<String> names = new LinkedHashSet<>();
+        Deque<String[]> pending = new ArrayDeque<>();
+        pending.push(expression.names);
+
+        while(!pending.isEmpty()){
+
+            for(String name : pending.pop()){
+
+                if(name.equals("ans")) return;
+
+                if(!names.add(name)) continue;
+
+                Expression lock = snapshot.lock(name);
+
+                if(lock != null) pending.push(lock.names);
+            }
+        }
+
+        String[] read = names.toArray(new String[0]);
+        long[] versions = new long[read.length];
+
+        for(int n = 0; n < read.length; n++){
+            versions[n] = snapshot.version(read[n]);
+        }
+
+        entries.put(key, new Entry(read, versions, result));
+    }
+
+    private static final class Entry {
+
+        final String[] names;
+
+        /**
+         * The version of each name when the result was evaluated.
+         */
+        final long[] versions;
+
+        final Quantity result;
+
+        Entry(String[] names, long[] versions, Quantity result){
+            this.names = names;
+            this.versions = versions;
+            this.result = result;
+        }
+    }
+}
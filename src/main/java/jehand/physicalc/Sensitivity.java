@@ -0,0 +1,206 @@
+/*
+ *  Copyright ©, 2020, Joseph E. Hand
+ *
+ *  This file is part of PhysiCalc.
+ *
+ *  PhysiCalc is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  PhysiCalc is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with PhysiCalc.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package jehand.physicalc;
+
+import java.util.Arrays;
+
+/**
+ * Propagates uncertainty with forward-mode automatic differentiation, so inputs used more than once are handled
+ * exactly.
+ *
+ * Every step of the expression's {@link Plan} carries its value and its partial derivatives with respect to the
+ * inputs it depends on. The derivatives are kept sparse, as the input step numbers in increasing order with their
+ * partials, so a result only carries the few inputs it actually reads. The uncertainty of the result is then the
+ * sum of each input's uncertainty times the size of its partial, the same rule the normal mode uses for independent
+ * values, but with an input used twice counted once: {@code x x -} has no uncertainty at all.
+ */
+
+final class Sensitivity {
+
+    private static final int[] noInputs = new int[0];
+    private static final double[] noPartials = new double[0];
+
+    private Sensitivity(){}
+
+    /**
+     * Evaluates a plan with derivatives.
+     *
+     * @param plan the plan
+     * @param units the units of the result
+     * @return the result with each input's contribution to its uncertainty
+     */
+    static Result propagate(Plan plan, Units units){
+
+        double[] values = new double[plan.steps];
+        int[][] inputs = new int[plan.steps][];
+        double[][] partials = new double[plan.steps][];
+
+        for(int s = 0; s < plan.steps; s++){
+
+            int a = plan.left[s];
+            int b = plan.right[s];
+
+            switch(plan.ops[s]){
+                case Plan.INPUT:
+                    values[s] = plan.mean[s];
+                    inputs[s] = plan.deviation[s] == 0 ? noInputs : new int[]{s};
+                    partials[s] = plan.deviation[s] == 0 ? noPartials : new double[]{1};
+                    break;
+                case Plan.ADD:
+                    values[s] = values[a] + values[b];
+                    combine(inputs, partials, s, a, 1, b, 1);
+                    break;
+                case Plan.SUBTRACT:
+                    values[s] = values[a] - values[b];
+                    combine(inputs, partials, s, a, 1, b, -1);
+                    break;
+                case Plan.MULTIPLY:
+                    values[s] = values[a] * values[b];
+                    combine(inputs, partials, s, a, values[b], b, values[a]);
+                    break;
+                case Plan.DIVIDE:
+                    values[s] = values[a] / values[b];
+                    combine(inputs, partials, s, a, 1 / values[b], b, -values[a] / (values[b] * values[b]));
+                    break;
+                default:
+                    // the power is kept in the right operand
+                    values[s] = Math.pow(values[a], b);
+                    combine(inputs, partials, s, a, b * Math.pow(values[a], b - 1), a, 0);
+            }
+        }
+
+        int[] resultInputs = inputs[plan.result];
+        double[] contributions = new double[resultInputs.length];
+        String[] names = new String[resultInputs.length];
+
+        for(int n = 0; n < resultInputs.length; n++){
+            contributions[n] = Math.abs(partials[plan.result][n]) * plan.deviation[resultInputs[n]];
+            names[n] = plan.names[resultInputs[n]];
+        }
+
+        return new Result(values[plan.result], units, names, contributions);
+    }
+
+    /**
+     * Sets a step's derivatives to a linear combination of two others', merging their inputs in order. The two steps
+     * may be the same one.
+     */
+    private static void combine(int[][] inputs, double[][] partials, int step, int a, double aScale, int b, double bScale){
+
+        int[] aInputs = inputs[a], bInputs = a == b ? noInputs : inputs[b];
+        double[] aPartials = partials[a], bPartials = a == b ? noPartials : partials[b];
+
+        if(a == b) aScale += bScale;
+
+        int[] outInputs = new int[aInputs.length + bInputs.length];
+        double[] outPartials = new double[outInputs.length];
+        int i = 0, j = 0, n = 0;
+
+        while(i < aInputs.length || j < bInputs.length){
+
+            double partial;
+            int input;
+
+            if(j == bInputs.length || (i < aInputs.length && aInputs[i] < bInputs[j])){
+                input = aInputs[i];
+                partial = aScale * aPartials[i++];
+            }else if(i == aInputs.length || bInputs[j] < aInputs[i]){
+                input = bInputs[j];
+                partial = bScale * bPartials[j++];
+            }else{
+                input = aInputs[i];
+                partial = aScale * aPartials[i++] + bScale * bPartials[j++];
+            }
+
+            // inputs that cancel out are dropped
+            if(partial != 0){
+                outInputs[n] = input;
+                outPartials[n++] = partial;
+            }
+        }
+
+        inputs[step] = n == outInputs.length ? outInputs : Arrays.copyOf(outInputs, n);
+        partials[step] = n == outPartials.length ? outPartials : Arrays.copyOf(outPartials, n);
+    }
+
+    /**
+     * A result with the contribution of each input to its uncertainty.
+     */
+    static final class Result {
+
+        final double value;
+
+        final Units units;
+
+        /**
+         * The inputs that contribute to the uncertainty, named by the token they were read from.
+         */
+        final String[] names;
+
+        /**
+         * The uncertainty each input contributes, in standard units.
+         */
+        final double[] contributions;
+
+        Result(double value, Units units, String[] names, double[] contributions){
+            this.value = value;
+            this.units = units;
+            this.names = names;
+            this.contributions = contributions;
+        }
+
+        /**
+         * @return the value with the total uncertainty
+         */
+        UncertainValue summary(){
+
+            double uncertainty = 0;
+
+            for(double c : contributions) uncertainty += c;
+
+            return new UncertainValue(value, uncertainty, units, false, true);
+        }
+
+        /**
+         * Converts the result to a string, with a line for each input's contribution, largest first.
+         *
+         * @return the string
+         */
+        public String toString(){
+
+            UncertainValue summary = summary();
+            double factor = units.getDisplayFactor();
+
+            Integer[] order = new Integer[names.length];
+
+            for(int n = 0; n < order.length; n++) order[n] = n;
+
+            Arrays.sort(order, (a, b) -> Double.compare(contributions[b], contributions[a]));
+
+            StringBuilder out = new StringBuilder(summary.toString().trim());
+
+            for(int n : order){
+                out.append(String.format("%n  %-30s%-25s%.1f%%", names[n], contributions[n] / factor, 100 * contributions[n] / summary.uncertainty));
+            }
+
+            return out.toString();
+        }
+    }
+}
@@ -0,0 +1,517 @@
+/*
+ *  Copyright ©, 2020, Joseph E. Hand
+ *
+ *  This file is part of PhysiCalc.
+ *
+ *  PhysiCalc is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  PhysiCalc is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with PhysiCalc.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package jehand.physicalc;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Serves the command language over TCP on the loopback interface, so scripts can share one running JVM.
+ *
+ * Every connection gets its own {@link Session}, and with "--shared" the sessions all use the same labels and locks,
+ * so one connection can keep a sheet of values up to date while others read it. One thread waits on all the connections with a selector and only
+ * reads and writes, so idle connections don't need a thread each. Complete lines are run in order by a small pool
+ * of workers, and all the lines that arrived together are answered with one write.
+ *
+ * Each response is written like batch mode output: every output line is the command's line number on that
+ * connection, a tab, and the text. An empty line ends the response.
+ */
+
+public class Server {
+
+    private static final String usage = "Usage: --serve <port> [--threads <count>] [--shared]";
+
+    /**
+     * The number of connections the OS queues before they are accepted, large enough for a burst of scripts
+     * connecting at once.
+     */
+    private static final int acceptBacklog = 1024;
+
+    /**
+     * The longest command line accepted, so a client can't use up the server's memory with one line.
+     */
+    private static final int maxLineLength = 16 << 20;
+
+    /**
+     * The most response bytes waiting for a client before the server stops reading its commands.
+     */
+    private static final int maxPendingOutput = 1 << 20;
+
+    /**
+     * The most command lines waiting to be run for a client before the server stops reading its commands.
+     */
+    private static final int maxQueuedLines = 4096;
+
+    /**
+     * The most command bytes waiting to be run for a client before the server stops reading its commands. It is at
+     * least the longest line, so any line can be queued.
+     */
+    private static final int maxQueuedBytes = maxLineLength;
+
+    /**
+     * How long to stop accepting connections after accepting one fails, usually because the process has run out of
+     * file descriptors, so the selector doesn't spin on a listener that stays ready.
+     */
+    private static final long acceptBackoffMillis = 100;
+
+    private final Engine engine = new Engine();
+
+    /**
+     * The session every connection's session shares its labels and locks with, or null if they each have their own.
+     */
+    private final Session sheet;
+
+    private final Selector selector;
+
+    private final ServerSocketChannel listener;
+
+    private final SelectionKey acceptKey;
+
+    /**
+     * When to start accepting connections again after a failure, or 0 if they are being accepted.
+     */
+    private long acceptResume;
+
+    private final ExecutorService workers;
+
+    /**
+     * Connections whose output or state was changed by a worker, to be updated by the selector thread.
+     */
+    private final Queue<Connection> changed = new ConcurrentLinkedQueue<>();
+
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(64 << 10);
+
+    private Server(int port, int threads, boolean shared) throws IOException {
+
+        this.sheet = shared ? engine.newSession() : null;
+
+        this.selector = Selector.open();
+        this.listener = ServerSocketChannel.open();
+
+        listener.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), acceptBacklog);
+        listener.configureBlocking(false);
+        this.acceptKey = listener.register(selector, SelectionKey.OP_ACCEPT);
+
+        this.workers = Executors.newFixedThreadPool(threads, (r) -> {
+            Thread t = new Thread(r, "physicalc-server");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Runs server mode from the command line arguments. Only returns if the server can't start or fails.
+     *
+     * @param args the arguments, starting with "--serve"
+     * @return the exit code
+     */
+    static int run(String[] args){
+
+        int port;
+        int threads = Runtime.getRuntime().availableProcessors();
+        boolean shared = false;
+
+        try {
+
+            port = Integer.parseInt(args[1]);
+
+            for(int n = 2; n < args.length; n++){
+
+                if(args[n].equals("--shared")){
+                    shared = true;
+                    continue;
+                }
+
+                if(!args[n].equals("--threads")) throw new IllegalArgumentException();
+
+                threads = Integer.parseInt(args[++n]);
+            }
+
+            if(port < 0 || port > 65535 || threads < 1) throw new IllegalArgumentException();
+
+        }catch(IllegalArgumentException | ArrayIndexOutOfBoundsException e){
+            System.err.println(usage);
+            return 2;
+        }
+
+        try {
+
+            Server server = new Server(port, threads, shared);
+
+            System.err.println("Listening on " + server.listener.getLocalAddress());
+
+            server.serve();
+
+        }catch(IOException e){
+            System.err.println("Server Error: " + e.getMessage());
+            return 1;
+        }
+
+        return 0;
+    }
+
+    private void serve() throws IOException {
+
+        while(true){
+
+            if(acceptResume == 0){
+                selector.select();
+            }else{
+
+                selector.select(Math.max(1, acceptResume - System.currentTimeMillis()));
+
+                if(System.currentTimeMillis() >= acceptResume){
+                    acceptResume = 0;
+                    acceptKey.interestOps(SelectionKey.OP_ACCEPT);
+                }
+            }
+
+            Connection connection;
+
+            while((connection = changed.poll()) != null){
+                connection.update();
+            }
+
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+
+            while(keys.hasNext()){
+
+                SelectionKey key = keys.next();
+                keys.remove();
+
+                if(!key.isValid()) continue;
+
+                if(key.isAcceptable()){
+                    accept();
+                    continue;
+                }
+
+                connection = (Connection) key.attachment();
+
+                try {
+
+                    if(key.isReadable()) connection.read();
+
+                    if(key.isValid() && key.isWritable()) connection.write();
+
+                    connection.update();
+
+                }catch(IOException e){
+                    connection.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Accepts every waiting connection. A failure only affects the connection being accepted, and stops accepting
+     * for a moment, so the server keeps serving the connections it has.
+     */
+    private void accept(){
+
+        while(true){
+
+            SocketChannel channel;
+
+            try {
+                channel = listener.accept();
+            }catch(IOException e){
+
+                System.err.println("Could not accept a connection: " + e.getMessage());
+
+                acceptResume = System.currentTimeMillis() + acceptBackoffMillis;
+                acceptKey.interestOps(0);
+                return;
+            }
+
+            if(channel == null) return;
+
+            try {
+
+                channel.configureBlocking(false);
+
+                Connection connection = new Connection(channel, sheet == null ? engine.newSession() : sheet.share());
+                connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+
+            }catch(IOException e){
+
+                System.err.println("Could not accept a connection: " + e.getMessage());
+
+                try {
+                    channel.close();
+                }catch(IOException closeError){
+                    // the connection is already unusable
+                }
+            }
+        }
+    }
+
+    /**
+     * A client connection and its session.
+     *
+     * Reading, writing, and changing what the selector waits for only happen on the selector thread. Workers run
+     * the queued lines and hand back the output; the fields they share with the selector thread are guarded by the
+     * connection's lock.
+     */
+    private final class Connection {
+
+        private final SocketChannel channel;
+
+        private final Session session;
+
+        private SelectionKey key;
+
+        /**
+         * The start of a line that hasn't been completed yet.
+         */
+        private final ByteArrayOutputStream partial = new ByteArrayOutputStream(0);
+
+        private final Queue<String> lines = new ArrayDeque<>();
+
+        /**
+         * The total length in bytes of the queued lines.
+         */
+        private int queuedBytes;
+
+        private final Queue<ByteBuffer> output = new ArrayDeque<>();
+
+        private int pendingOutput;
+
+        private int lineNumber;
+
+        /**
+         * Is a worker running this connection's lines.
+         */
+        private boolean running;
+
+        /**
+         * Has the client finished sending.
+         */
+        private boolean ended;
+
+        Connection(SocketChannel channel, Session session){
+            this.channel = channel;
+            this.session = session;
+        }
+
+        void read() throws IOException {
+
+            readBuffer.clear();
+
+            int read = channel.read(readBuffer);
+
+            boolean added = false;
+
+            if(read < 0){
+
+                // a last line without a newline is still run
+                if(partial.size() > 0){
+                    addLine();
+                    added = true;
+                }
+
+                synchronized(this){
+                    ended = true;
+                }
+
+                if(added) start();
+                return;
+            }
+
+            readBuffer.flip();
+
+            while(readBuffer.hasRemaining()){
+
+                byte b = readBuffer.get();
+
+                if(b != '\n'){
+
+                    if(partial.size() == maxLineLength) throw new IOException("Line too long");
+
+                    partial.write(b);
+                    continue;
+                }
+
+                addLine();
+                added = true;
+            }
+
+            if(added) start();
+        }
+
+        private void addLine(){
+
+            byte[] bytes = partial.toByteArray();
+            String line = new String(bytes, StandardCharsets.UTF_8);
+            partial.reset();
+
+            if(line.endsWith("\r")) line = line.substring(0, line.length() - 1);
+
+            synchronized(this){
+                lines.add(line);
+                queuedBytes += bytes.length;
+            }
+        }
+
+        void write() throws IOException {
+
+            synchronized(this){
+
+                while(!output.isEmpty()){
+
+                    ByteBuffer buffer = output.peek();
+                    int written = channel.write(buffer);
+
+                    pendingOutput -= written;
+
+                    if(buffer.hasRemaining()) return;
+
+                    output.remove();
+                }
+            }
+        }
+
+        /**
+         * Hands the queued lines to a worker if one isn't already running them.
+         */
+        private synchronized void start(){
+
+            if(running || lines.isEmpty()) return;
+
+            running = true;
+            workers.execute(this::runLines);
+        }
+
+        /**
+         * Runs queued lines until there are none left, answering each group of lines with one buffer.
+         */
+        private void runLines(){
+
+            while(true){
+
+                Queue<String> batch;
+                boolean full;
+
+                synchronized(this){
+
+                    if(lines.isEmpty()){
+                        running = false;
+                        break;
+                    }
+
+                    full = queueFull();
+                    batch = new ArrayDeque<>(lines);
+                    lines.clear();
+                    queuedBytes = 0;
+                }
+
+                // reading starts again now the queue is empty, while this batch runs
+                if(full){
+                    changed.add(this);
+                    selector.wakeup();
+                }
+
+                StringBuilder response = new StringBuilder();
+
+                for(String line : batch){
+
+                    int number = ++lineNumber;
+                    String result;
+
+                    try {
+                        result = line.trim().isEmpty() ? "" : session.execute(line);
+                    }catch(RuntimeException | Error e){
+                        // errors such as running out of memory in a large "mc" are answered too, so the client isn't left waiting
+                        result = "Error: " + e;
+                    }
+
+                    for(String outputLine : result.split("\r?\n", -1)){
+                        response.append(number).append('\t').append(outputLine).append('\n');
+                    }
+
+                    response.append('\n');
+                }
+
+                byte[] bytes = response.toString().getBytes(StandardCharsets.UTF_8);
+
+                synchronized(this){
+                    output.add(ByteBuffer.wrap(bytes));
+                    pendingOutput += bytes.length;
+                }
+
+                changed.add(this);
+                selector.wakeup();
+            }
+
+            changed.add(this);
+            selector.wakeup();
+        }
+
+        /**
+         * @return are enough lines queued that no more should be read until they are run
+         */
+        private boolean queueFull(){
+            return lines.size() >= maxQueuedLines || queuedBytes >= maxQueuedBytes;
+        }
+
+        /**
+         * Sets what the selector waits for on this connection, and closes it once it's finished.
+         */
+        synchronized void update(){
+
+            if(!key.isValid()) return;
+
+            if(ended && !running && lines.isEmpty() && output.isEmpty()){
+                close();
+                return;
+            }
+
+            int interest = 0;
+
+            if(!ended && pendingOutput < maxPendingOutput && !queueFull()) interest |= SelectionKey.OP_READ;
+
+            if(!output.isEmpty()) interest |= SelectionKey.OP_WRITE;
+
+            key.interestOps(interest);
+        }
+
+        void close(){
+
+            key.cancel();
+
+            try {
+                channel.close();
+            }catch(IOException e){
+                // nothing more can be done with the connection
+            }
+        }
+    }
+}
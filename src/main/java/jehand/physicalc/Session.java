@@ -0,0 +1,1231 @@
+/*
+ *  Copyright ©, 2020, Joseph E. Hand
+ *
+ *  This file is part of PhysiCalc.
+ *
+ *  PhysiCalc is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  PhysiCalc is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with PhysiCalc.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package jehand.physicalc;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.function.Supplier;
+
+/**
+ * One user's labels, locks, and "ans", and the interpreter for their commands.
+ *
+ * Sessions are created by {@link Engine#newSession()} and share the engine's constants and units. Each session has
+ * its own state, so different sessions can be used on different threads at the same time, and the methods of one
+ * session are synchronized so it can be shared between threads too. Nothing is written to standard output.
+ */
+
+public final class Session implements Closeable {
+
+    /**
+     * The prefix appended to any output.
+     */
+    private static final String printPrefix = "";
+
+    /**
+     * List of forbidden label/lock names
+     */
+    private static final String[] keywords = {"in", "is", "lock", "to", "list", "units", "constants", "labels", "ans", "mc", "ad", "stats", "sweep", "mean", "wmean", "std", "sum", "chi2", "x", "*", "+", "-", "/", "^"};
+
+    private static final String lackOfNumbers = "The expression couldn't be evaluated due to lack of numbers. (Make sure all operations have the required number of inputs.)";
+
+    /**
+     * The labels and locks, with cached lock results.
+     */
+    private final Workspace workspace;
+
+    /**
+     * The operand stack of each thread, reused by every evaluation on it. Batch mode evaluates a session's commands
+     * on several threads at once, so a stack can't belong to the session.
+     */
+    private static final ThreadLocal<OperandStack> operands = ThreadLocal.withInitial(OperandStack::new);
+
+    /**
+     * Where the labels and locks are saved, or null if they aren't.
+     */
+    private Journal journal;
+
+    /**
+     * Value used by the "ans" keyword.
+     */
+    private Quantity storedAnswer = new UncertainValue(0, 0, Units.parse(""));
+
+
+    Session(){
+        this.workspace = new Workspace();
+    }
+
+    private Session(Workspace workspace, Quantity answer){
+        this.workspace = workspace;
+        this.storedAnswer = answer;
+    }
+
+    /**
+     * Executes a single command line, as if it were typed into the console, and returns the text it outputs.
+     *
+     * @param line the command line
+     * @return the output, without a trailing newline
+     */
+    public synchronized String execute(String line){
+
+        return prepare(line).commit();
+    }
+
+    /**
+     * Evaluates an RPN expression and stores the result in "ans".
+     *
+     * @param expression the expression, with tokens separated by spaces
+     * @return the result
+     * @throws IllegalArgumentException if the expression can't be evaluated
+     */
+    public synchronized Quantity evaluate(String expression){
+
+        Quantity result = evaluateChecked(tokens(expression));
+
+        setAnswer(result);
+
+        return result;
+    }
+
+    /**
+     * Evaluates an expression and stores the result in a label and in "ans".
+     *
+     * @param name the label
+     * @param expression the expression, with tokens separated by spaces
+     * @return the result
+     * @throws IllegalArgumentException if the name can't be used or the expression can't be evaluated
+     */
+    public synchronized Quantity assign(String name, String expression){
+
+        String problem = nameProblem(name, false);
+
+        if(problem != null){
+            throw new IllegalArgumentException(problem);
+        }
+
+        Quantity result = evaluateChecked(tokens(expression));
+
+        setAnswer(result);
+        workspace.putValue(name, result);
+
+        return result;
+    }
+
+    /**
+     * Locks a name to an expression, which is evaluated again whenever a label it reads changes.
+     *
+     * @param name the lock
+     * @param expression the expression, with tokens separated by spaces
+     * @throws IllegalArgumentException if the name can't be used or the lock would read itself
+     */
+    public synchronized void lock(String name, String expression){
+
+        String problem = nameProblem(name, true);
+
+        if(problem != null){
+            throw new IllegalArgumentException(problem);
+        }
+
+        List<String> loop = workspace.putLock(name, Expression.compile(tokens(expression)));
+
+        if(loop != null){
+            throw new IllegalArgumentException(loopMessage(loop));
+        }
+    }
+
+    /**
+     * Deletes a label or lock.
+     *
+     * @param name the label or lock
+     * @return did it exist
+     */
+    public synchronized boolean clear(String name){
+        return workspace.remove(name);
+    }
+
+    /**
+     * Creates another session that uses the same labels and locks, with its own "ans".
+     *
+     * Changes made through any of the sessions are seen by all of them. Each evaluation reads the labels and locks as
+     * they were when it started, and neither it nor a change waits for the others, so the sessions can be used on
+     * separate threads while one of them edits the labels. Locks can't read "ans" once a workspace is shared, since
+     * each session has its own. Changes are saved if this session is, until it is closed.
+     *
+     * @return the new session
+     * @throws IllegalArgumentException if a lock already reads "ans"
+     */
+    public Session share(){
+
+        workspace.share();
+
+        return new Session(workspace, new UncertainValue(0, 0, Units.parse("")));
+    }
+
+    /**
+     * Restores the labels and locks saved in a directory, then saves every change to them there.
+     *
+     * @param directory the directory
+     * @param syncMillis how often changes are forced to the disk, or 0 to force each one as it is made
+     * @throws IOException if the saved files can't be read or created
+     */
+    synchronized void persist(Path directory, long syncMillis) throws IOException {
+
+        journal = Journal.open(directory, workspace, syncMillis);
+        workspace.setJournal(journal);
+    }
+
+    /**
+     * Forces any saved changes that haven't reached the disk yet, and stops saving changes. Does nothing if the
+     * session isn't saved.
+     *
+     * @throws IOException if the changes can't be written
+     */
+    public synchronized void close() throws IOException {
+
+        if(journal == null) return;
+
+        workspace.setJournal(null);
+        journal.close();
+        journal = null;
+    }
+
+    /**
+     * Evaluates an expression, stores the result in "ans", and writes it in the given units.
+     *
+     * @param expression the expression, with tokens separated by spaces
+     * @param units the units to write the result in
+     * @return the result, as the console would show it
+     * @throws IllegalArgumentException if the expression can't be evaluated or the units don't match
+     */
+    public synchronized String convert(String expression, String units){
+
+        Quantity result = evaluateChecked(tokens(expression));
+
+        setAnswer(result);
+
+        return result.toString(units);
+    }
+
+    /**
+     * Evaluates several expressions and writes each result in the same units, as {@link #convert(String, String)} does
+     * for one. The units are only parsed once, and "ans" is left as the last result.
+     *
+     * @param expressions the expressions, each with tokens separated by spaces
+     * @param units the units to write the results in
+     * @return the results, in the same order as the expressions
+     * @throws IllegalArgumentException if the units can't be parsed, or an expression can't be evaluated or doesn't match them
+     */
+    public synchronized List<String> convert(List<String> expressions, String units){
+
+        Conversion conversion = Conversion.to(units);
+        List<String> results = new ArrayList<>(expressions.size());
+
+        for(String expression : expressions){
+
+            Quantity result = evaluateChecked(tokens(expression));
+
+            setAnswer(result);
+            results.add(conversion.format(result));
+        }
+
+        return results;
+    }
+
+    /**
+     * Runs a sweep command, writing its table as the points are evaluated. Labels, locks and "ans" are left as they
+     * were.
+     *
+     * @param command the command, as typed into the console but without "into"
+     * @param out where the table is written
+     * @return the number of points
+     * @throws IllegalArgumentException if the command isn't a valid sweep
+     * @throws IOException if the table can't be written
+     */
+    public synchronized long sweep(String command, Writer out) throws IOException {
+
+        Sweep sweep = parseSweep(tokens(command));
+
+        if(sweep.file != null){
+            throw new IllegalArgumentException("The table is written to the writer given, so leave out \"into\".");
+        }
+
+        sweep.run(workers(), out);
+
+        return sweep.points;
+    }
+
+    /**
+     * Gets the value of a label, or the result of a lock.
+     *
+     * @param name the label or lock
+     * @return the value, or null if there isn't a label or lock with that name
+     * @throws IllegalArgumentException if the lock can't be evaluated
+     */
+    public synchronized Quantity value(String name){
+
+        if(!workspace.containsLock(name)){
+            return workspace.value(name);
+        }
+
+        return evaluateChecked(new String[]{name});
+    }
+
+    private static String[] tokens(String expression){
+        return expression.trim().split("\\s+");
+    }
+
+    /**
+     * Evaluates an expression, reporting every kind of failure as an IllegalArgumentException.
+     */
+    private Quantity evaluateChecked(String[] tokens){
+
+        try {
+            return evaluateExpression(tokens);
+        }catch(EmptyStackException e){
+            throw new IllegalArgumentException(lackOfNumbers);
+        }
+    }
+
+    /**
+     * Checks whether a label or lock can be created with a name.
+     *
+     * @param name the name
+     * @param lock is it for a lock rather than a label
+     * @return the reason it can't be, or null if it can
+     */
+    private String nameProblem(String name, boolean lock){
+
+        if(Arrays.stream(keywords).anyMatch((s) -> s.equals(name))){
+            return "That name is reserved";
+        }
+
+        if(lock && workspace.containsLabel(name)){
+            return "There is a label with that name, clear it first";
+        }
+
+        if(!lock && workspace.containsLock(name)){
+            return "There is a lock with that name, clear it first";
+        }
+
+        return null;
+    }
+
+    /**
+     * Describes a loop found when setting a lock. Long loops are shortened to their ends.
+     *
+     * @param loop the names in the loop, starting and ending with the new lock
+     * @return the message
+     */
+    private static String loopMessage(List<String> loop){
+
+        Metrics.instance.loopError();
+
+        if(loop.size() > 12){
+            loop = new ArrayList<>(loop);
+            loop.subList(5, loop.size() - 5).clear();
+            loop.add(5, "...");
+        }
+
+        return "That lock would reference itself in a loop: " + String.join(" -> ", loop);
+    }
+
+    /**
+     * Parses a command line and does its read-only work, leaving any changes to labels, locks, or "ans" for {@link Pending#commit()}.
+     *
+     * @param line the command line
+     * @return the prepared command
+     */
+    Pending prepare(String line){
+
+        Pending pending = parse(line);
+        pending.evaluate();
+        return pending;
+    }
+
+    /**
+     * Like {@link #prepare(String)}, but always compiles and evaluates the expression, without reading or filling
+     * the workspace's {@link ResultCache}. For benchmarks of evaluation.
+     *
+     * @param line the command line
+     * @return the prepared command
+     */
+    Pending prepareUncached(String line){
+
+        Pending pending = parse(line);
+        pending.cached = false;
+        pending.evaluate();
+        return pending;
+    }
+
+    /**
+     * Parses a command line without evaluating it.
+     *
+     * @param line the command line
+     * @return the parsed command
+     */
+    Pending parse(String line){
+        return new Pending(line);
+    }
+
+    /**
+     * A command line that has been parsed but not yet applied.
+     *
+     * Evaluation only reads the session state, so the batch runner can evaluate independent lines in parallel and
+     * then commit them one at a time in input order.
+     */
+    final class Pending {
+
+        final String line;
+
+        private final String[] args;
+
+        private final String command;
+
+        /**
+         * The expression this command evaluates, or null if it doesn't evaluate one.
+         */
+        private final String[] expression;
+
+        private Quantity result;
+
+        /**
+         * The sampled result of the "mc" command.
+         */
+        private MonteCarlo.Result distribution;
+
+        /**
+         * The result of the "ad" command.
+         */
+        private Sensitivity.Result sensitivity;
+
+        /**
+         * The output of the "sweep" command.
+         */
+        private String table;
+
+        /**
+         * The result of a statistic command.
+         */
+        private Aggregate.Result statistic;
+
+        private RuntimeException error;
+
+        /**
+         * Is the expression's result read from and kept in the workspace's {@link ResultCache}.
+         */
+        private boolean cached = true;
+
+        /**
+         * The time spent evaluating and committing this command so far, for {@link Metrics}.
+         */
+        private long nanos;
+
+        private Pending(String line){
+
+            this.line = line;
+            this.args = line.split(" ");
+
+            if(!line.startsWith("!") && Engine.hasInfo(line)){
+                command = "info";
+                expression = null;
+            }else if(args[0].equals("list")){
+                command = "list";
+                expression = null;
+            }else if(args.length == 1 && args[0].equals("stats")){
+                command = "stats";
+                expression = null;
+            }else if(args.length > 1 && args[0].equals("sweep")){
+                command = "sweep";
+                expression = null;
+            }else if(args.length >= 3 && args[1].equals("is")){
+                command = "is";
+                expression = Arrays.copyOfRange(args, 2, args.length);
+            }else if(args.length == 2 && args[0].equals("clear")){
+                command = "clear";
+                expression = null;
+            }else if(args.length > 1 && Aggregate.isStatistic(args[0])){
+                command = "aggregate";
+                expression = Aggregate.expression(args);
+            }else if(args.length > 2 && args[args.length - 2].equals("in")){
+                command = "in";
+                expression = Arrays.copyOfRange(args, 0, args.length - 2);
+            }else if(args.length > 3 && args[0].equals("lock") && args[2].equals("to")){
+                command = "lock";
+                expression = null;
+            }else if(args.length > 5 && args[0].equals("load") && args[2].equals("as") && args[4].equals("cols")){
+                command = "load";
+                expression = null;
+            }else if(args.length > 1 && args[0].equals("ad")){
+                command = "ad";
+                expression = Arrays.copyOfRange(args, 1, args.length);
+            }else if(args.length > 2 && args[0].equals("mc")){
+                command = "mc";
+                expression = Arrays.copyOfRange(args, 2, args.length);
+            }else{
+                command = "expression";
+                expression = args;
+            }
+        }
+
+        /**
+         * Evaluates this command's expression, if any, against the current labels and locks, or reads the file it
+         * loads.
+         */
+        void evaluate(){
+
+            long start = System.nanoTime();
+
+            try {
+                if(command.equals("load")){
+                    result = load(args);
+                }else if(command.equals("ad")){
+                    sensitivity = differentiate(expression);
+                }else if(command.equals("mc")){
+                    distribution = monteCarlo(args[1], expression);
+                }else if(command.equals("sweep")){
+                    table = sweep(args);
+                }else if(command.equals("aggregate")){
+                    statistic = Aggregate.run(args, Session.this::evaluateExpression);
+                }else if(expression != null){
+                    result = cached ? evaluateExpression(expression) : evaluateExpression(Expression.compile(expression));
+                }
+            }catch(RuntimeException e){
+                error = e;
+            }
+
+            nanos += System.nanoTime() - start;
+        }
+
+        /**
+         * @return the label or lock this command creates or deletes, or null if it doesn't change one
+         */
+        String writtenName(){
+
+            switch(command){
+                case "is":
+                    return args[0];
+                case "clear":
+                case "lock":
+                    return args[1];
+                case "load":
+                    return args[3];
+                default:
+                    return null;
+            }
+        }
+
+        /**
+         * @return does this command change the value of "ans"
+         */
+        boolean writesAnswer(){
+            return expression != null;
+        }
+
+        /**
+         * @return does this command read every label, so it has to see all earlier commands applied
+         */
+        boolean readsAll(){
+            return command.equals("list") || command.equals("sweep");
+        }
+
+        /**
+         * Checks whether this command's expression reads any of the given names, following locks through to the
+         * labels they reference. "ans" counts as a name.
+         *
+         * @param names the names to look for
+         * @return is any of them read
+         */
+        boolean reads(Set<String> names){
+
+            if(expression == null || names.isEmpty()) return false;
+
+            Set<String> visited = new HashSet<>();
+            Deque<String[]> pending = new ArrayDeque<>();
+            pending.push(expression);
+
+            while(!pending.isEmpty()){
+
+                for(String token : pending.pop()){
+
+                    if(Engine.physicalConstants.containsKey(token) || !visited.add(token)) continue;
+
+                    if(names.contains(token)) return true;
+
+                    Expression lock = workspace.lock(token);
+
+                    if(lock != null) pending.push(lock.names);
+                }
+            }
+
+            return false;
+        }
+
+        /**
+         * Applies this command's changes and produces its output, with a warning if the changes can't be saved.
+         *
+         * @return the output, without a trailing newline
+         */
+        String commit(){
+
+            long start = System.nanoTime();
+
+            try {
+                String output = apply();
+
+                if(writtenName() != null){
+
+                    IOException failure = workspace.saveFailure();
+
+                    if(failure != null){
+                        output += "\n" + printPrefix + "Warning: changes are no longer being saved: " + failure.getMessage();
+                    }
+                }
+
+                return output;
+            }finally{
+                Metrics.instance.command(command, nanos + System.nanoTime() - start);
+            }
+        }
+
+        private String apply(){
+
+            switch(command){
+
+                case "info":
+                    return Engine.info(line);
+
+                // stats command: times and counts from every session
+                case "stats":
+                    return printPrefix + Metrics.instance.getReport();
+
+                // list command: lists all stored variables
+                case "list":
+
+                    if(args.length < 2){
+                        return "";
+                    }
+
+                    switch(args[1]){
+
+                        case "labels":
+                            StringBuilder list = new StringBuilder();
+                            list.append(printPrefix + "List of all values:");
+                            list.append(String.format("%n%-40s%-20s", "Name:", "Value:"));
+
+                            Workspace.Snapshot snapshot = workspace.snapshot();
+                            Iterator<String> iterator = snapshot.labelNames().stream().sorted(String.CASE_INSENSITIVE_ORDER).iterator();
+
+                            while(iterator.hasNext()) {
+                                String label = iterator.next();
+                                list.append(String.format("%n%-40s%-20s", label, snapshot.value(label).toString()));
+                            }
+                            return list.toString();
+                        case "constants":
+                            return Engine.constantsDescriptions();
+                        case "units":
+                            return Units.descriptions();
+                        default:
+                            return "";
+                    }
+
+                // is command: assigns a new variable
+                case "is":
+
+                    String problem = nameProblem(args[0], false);
+
+                    if(problem != null) return problem;
+
+                    if(error != null) return errorMessage(error);
+
+                    setAnswer(result);
+                    workspace.putValue(args[0], result);
+
+                    return printPrefix + result.toString();
+
+                // clear command: clears a stored variable
+                case "clear":
+
+                    if(workspace.remove(args[1])) {
+                        return printPrefix + "Deleted label/lock: " + args[1];
+                    } else {
+                        return printPrefix + "That label/lock doesn't exist";
+                    }
+
+                // in command: prints value in given units
+                case "in":
+
+                    if(error != null) return errorMessage(error);
+
+                    setAnswer(result);
+
+                    try {
+                        return printPrefix + result.toString(args[args.length - 1]);
+                    }catch(IllegalArgumentException e){
+                        return errorMessage(e);
+                    }
+
+                // lock command: lock a label to an expression
+                case "lock":
+
+                    problem = nameProblem(args[1], true);
+
+                    if(problem != null) return problem;
+
+                    List<String> loop;
+
+                    try {
+                        loop = workspace.putLock(args[1], Expression.compile(Arrays.copyOfRange(args, 3, args.length)));
+                    }catch(IllegalArgumentException e){
+                        return errorMessage(e);
+                    }
+
+                    if(loop != null){
+                        Metrics.instance.mathError();
+                        return printPrefix + "Math Error: " + loopMessage(loop);
+                    }
+
+                    return printPrefix + "Lock set successfully: " + args[1];
+
+                // load command: reads columns of a data file into a label
+                case "load":
+
+                    problem = nameProblem(args[3], false);
+
+                    if(problem != null) return problem;
+
+                    if(error instanceof UncheckedIOException){
+                        return printPrefix + "Could not load file: \"" + args[1] + "\"";
+                    }
+
+                    if(error != null) return errorMessage(error);
+
+                    workspace.putValue(args[3], result);
+
+                    return printPrefix + "Loaded " + ((UncertainSeries) result).size() + " values into " + args[3];
+
+                // ad command: evaluate with derivatives and show where the uncertainty comes from
+                case "ad":
+
+                    if(error != null) return errorMessage(error);
+
+                    setAnswer(sensitivity.summary());
+
+                    return printPrefix + sensitivity.toString();
+
+                // mc command: evaluate by sampling the inputs
+                case "mc":
+
+                    if(error != null) return errorMessage(error);
+
+                    setAnswer(distribution.summary());
+
+                    return printPrefix + distribution.toString();
+
+                // sweep command: evaluate over a grid of label values
+                case "sweep":
+
+                    if(error instanceof UncheckedIOException){
+                        return printPrefix + "Could not write file: \"" + args[args.length - 1] + "\"";
+                    }
+
+                    if(error != null) return errorMessage(error);
+
+                    return printPrefix + table;
+
+                // statistic commands: a statistic of a series or of columns of a data file
+                case "aggregate":
+
+                    if(error instanceof UncheckedIOException){
+                        return printPrefix + "Could not load file: \"" + args[1] + "\"";
+                    }
+
+                    if(error != null) return errorMessage(error);
+
+                    setAnswer(statistic.value);
+
+                    return printPrefix + statistic.toString();
+
+                // expression: evaluate and print result
+                default:
+
+                    if(error != null) return errorMessage(error);
+
+                    setAnswer(result);
+
+                    return printPrefix + result.toString();
+            }
+        }
+    }
+
+    /**
+     * Changes the value used by "ans", invalidating any locks that read it.
+     *
+     * @param result the new value
+     */
+    private void setAnswer(Quantity result){
+
+        storedAnswer = result;
+        workspace.invalidate("ans");
+    }
+
+    /**
+     * Evaluates an expression with derivatives of its inputs: {@code ad <expression>}
+     *
+     * @param tokens the expression
+     * @return the result with the contribution of each input
+     */
+    private Sensitivity.Result differentiate(String[] tokens){
+
+        Expression expression = Expression.compile(tokens);
+        Workspace.Snapshot snapshot = workspace.snapshot();
+
+        // evaluating normally first checks the units and operands, and gives the units of the result
+        Quantity nominal = evaluateExpression(expression, snapshot);
+
+        return Sensitivity.propagate(Plan.build(expression, snapshot, storedAnswer), nominal.getUnits());
+    }
+
+    /**
+     * Evaluates an expression by sampling its inputs: {@code mc <samples> <expression>}
+     *
+     * @param samples the number of samples
+     * @param tokens the expression
+     * @return the distribution of the result
+     */
+    private MonteCarlo.Result monteCarlo(String samples, String[] tokens){
+
+        int count;
+
+        try {
+            count = Integer.parseInt(samples);
+        }catch(NumberFormatException e){
+            count = -1;
+        }
+
+        if(count < 2 || count > MonteCarlo.maxSamples){
+            throw new IllegalArgumentException("Monte Carlo mode takes between 2 and " + MonteCarlo.maxSamples + " samples.");
+        }
+
+        Expression expression = Expression.compile(tokens);
+        Workspace.Snapshot snapshot = workspace.snapshot();
+
+        // evaluating normally first checks the units and operands, and gives the units of the result
+        Quantity nominal = evaluateExpression(expression, snapshot);
+
+        return MonteCarlo.sample(Plan.build(expression, snapshot, storedAnswer), count, nominal.getUnits(), new SplittableRandom());
+    }
+
+    /**
+     * Evaluates an expression over a grid of label values: {@code sweep <name> from <start> to <end> step <step> [sweep ...] eval <expression> [in <units>] [into <file>]}
+     *
+     * @param args the command's arguments
+     * @return the table, or a note of where it was written
+     * @throws UncheckedIOException if the file can't be written
+     */
+    private String sweep(String[] args){
+
+        Sweep sweep = parseSweep(args);
+
+        try {
+
+            if(sweep.file == null){
+
+                if(sweep.points > Sweep.printedLimit){
+                    throw new IllegalArgumentException("Sweeps of more than " + Sweep.printedLimit + " points have to be written to a file with \"into <file>\".");
+                }
+
+                StringWriter out = new StringWriter();
+                sweep.run(workers(), out);
+
+                String table = out.toString();
+
+                return table.substring(0, table.length() - 1);
+            }
+
+            try(Writer out = Files.newBufferedWriter(Paths.get(sweep.file), StandardCharsets.UTF_8)){
+                sweep.run(workers(), out);
+            }
+
+        }catch(IOException e){
+            throw new UncheckedIOException(e);
+        }
+
+        return "Wrote " + sweep.points + " points to " + sweep.file;
+    }
+
+    private Sweep parseSweep(String[] args){
+
+        Sweep sweep = Sweep.parse(args, (token) -> evaluateChecked(new String[]{token}));
+
+        for(String name : sweep.names){
+
+            String problem = nameProblem(name, false);
+
+            if(problem != null){
+                throw new IllegalArgumentException(problem + ": " + name);
+            }
+        }
+
+        return sweep;
+    }
+
+    /**
+     * Copies the labels, locks, cached lock results and "ans" once, for the workers in a sweep. Every worker starts
+     * from that copy, so they all see the same values even if a session sharing the workspace changes it during the
+     * sweep. Changes to the workers aren't saved.
+     *
+     * @return creates a new session from the copy for each worker
+     */
+    private Supplier<Session> workers(){
+
+        Workspace start = workspace.copy();
+        Quantity answer = storedAnswer;
+
+        return () -> new Session(start.copy(), answer);
+    }
+
+    /**
+     * Sets a label without checking its name, for a sweep's copy of a session.
+     *
+     * @param name the label
+     * @param value the value
+     */
+    void setLabel(String name, Quantity value){
+        workspace.putValue(name, value);
+    }
+
+    /**
+     * Reads a series from columns of a data file: {@code load <file> as <name> cols <value>[,<uncertainty>] [units <units>]}
+     *
+     * @param args the command's arguments
+     * @return the series
+     * @throws UncheckedIOException if the file can't be read
+     */
+    private static UncertainSeries load(String[] args){
+
+        String[] columns = args[5].split(",");
+
+        if(columns.length > 2 || (args.length != 6 && (args.length != 8 || !args[6].equals("units")))){
+            throw new IllegalArgumentException("Use: load <file> as <name> cols <value>[,<uncertainty>] [units <units>]");
+        }
+
+        Units units = Units.parse(args.length == 8 ? args[7] : "");
+
+        double[][] values;
+
+        try {
+            values = CsvLoader.readColumns(Paths.get(args[1]), columns);
+        }catch(IOException e){
+            throw new UncheckedIOException(e);
+        }
+
+        return UncertainSeries.scaled(values[0], columns.length == 2 ? values[1] : new double[values[0].length], units);
+    }
+
+    /**
+     * Converts an error thrown while evaluating into the message shown to the user.
+     *
+     * @param e the error
+     * @return the message
+     */
+    static String errorMessage(RuntimeException e){
+
+        if(e instanceof LoopException){
+            Metrics.instance.loopError();
+        }
+
+        if(e instanceof EmptyStackException){
+            Metrics.instance.mathError();
+            return printPrefix + "Math Error: " + lackOfNumbers;
+        }
+
+        if(e instanceof IllegalArgumentException){
+            Metrics.instance.mathError();
+            return printPrefix + "Math Error: " + e.getMessage();
+        }
+
+        throw e;
+    }
+
+    /**
+     * Eveluates an expression using RPN (Reverse Polish Notation).
+     *
+     * The workspace's {@link ResultCache} is checked first, and the result is kept there, unless the expression reads
+     * "ans".
+     *
+     * @param args the arguments and operations to evaluate
+     * @return the output of the expression
+     */
+    private Quantity evaluateExpression(String[] args){
+
+        if(Arrays.asList(args).contains("ans")){
+            return evaluateExpression(Expression.compile(args));
+        }
+
+        Workspace.Snapshot snapshot = workspace.snapshot();
+        String key = String.join(" ", args);
+        Quantity result = workspace.results.get(key, snapshot);
+
+        if(result != null) return result;
+
+        Expression expression = Expression.compile(args);
+
+        result = evaluateExpression(expression, snapshot);
+        workspace.results.put(key, expression, snapshot, result);
+
+        return result;
+    }
+
+    /**
+     * Evaluates a compiled expression.
+     *
+     * Locks are evaluated on an explicit stack of frames rather than by recursion, so long chains of locks don't
+     * depend on the thread's stack size. Each frame's operands sit above its base on the thread's operand stack,
+     * which keeps single values as plain numbers so only the result needs an object. Constant and repeated
+     * subexpressions found by {@link Shortcuts} are skipped.
+     *
+     * @param expression the expression to evaluate
+     * @return the output of the expression
+     * @throws LoopException if a lock reads itself
+     */
+    Quantity evaluateExpression(Expression expression){
+        return evaluateExpression(expression, workspace.snapshot());
+    }
+
+    /**
+     * Evaluates a compiled expression on one snapshot of the labels and locks, so changes made by other sessions
+     * sharing the workspace while it runs aren't seen.
+     */
+    private Quantity evaluateExpression(Expression expression, Workspace.Snapshot snapshot){
+
+        OperandStack numbers = operands.get();
+
+        // an evaluation can still start inside another one on the same thread
+        if(numbers.size() != 0){
+            numbers = new OperandStack();
+        }
+
+        long start = Metrics.start();
+
+        try {
+            return evaluateExpression(expression, snapshot, numbers);
+        }finally{
+            numbers.truncate(0);
+            Metrics.stop(Metrics.instance.evaluate, start);
+        }
+    }
+
+    private Quantity evaluateExpression(Expression expression, Workspace.Snapshot snapshot, OperandStack numbers){
+
+        ArrayDeque<Frame> frames = null;
+        Set<String> evaluating = null;
+        int depth = 0;
+
+        // the frame being evaluated is kept in locals, and only saved when a lock is entered
+        String lock = null;
+        Expression current = expression;
+        Quantity[] slots = slots(expression);
+        int base = 0;
+        int next = 0;
+
+        while(true) {
+
+            // finished expression: return it or hand the lock's result back to the frame that read it
+            if(next == current.length()){
+
+                Quantity result = numbers.pop(base);
+                numbers.truncate(base);
+
+                if(lock == null){
+
+                    if(depth > 0) Metrics.instance.lockDepth(depth);
+
+                    return result;
+                }
+
+                workspace.cacheLock(snapshot, lock, result);
+                evaluating.remove(lock);
+
+                Frame frame = frames.pop();
+                lock = frame.lock;
+                current = frame.expression;
+                slots = frame.slots;
+                base = frame.base;
+                next = frame.next;
+
+                numbers.push(result);
+                continue;
+            }
+
+            int n = next++;
+            Shortcuts shortcuts = current.shortcuts;
+
+            if(shortcuts != null){
+
+                if(shortcuts.reuses[n] != 0){
+                    numbers.push(slots[shortcuts.reuses[n] - 1]);
+                    next = shortcuts.reuseEnds[n];
+                    continue;
+                }
+
+                if(shortcuts.folded[n] != null && unshadowed(shortcuts.guards[n], snapshot)){
+                    numbers.push(shortcuts.folded[n]);
+                    next = shortcuts.foldEnds[n];
+                    continue;
+                }
+            }
+
+            switch (current.ops[n]) {
+                case Expression.ADD:
+                case Expression.SUBTRACT:
+                case Expression.MULTIPLY:
+                case Expression.DIVIDE:
+                    numbers.apply(current.ops[n], base);
+
+                    if(slots != null && shortcuts.saves[n] != 0) slots[shortcuts.saves[n] - 1] = numbers.peek(base);
+                    break;
+                case Expression.ANSWER:
+                    numbers.push(storedAnswer);
+                    break;
+                case Expression.POWER:
+
+                    // a missing operand is reported before a bad exponent
+                    numbers.check(base, 1);
+                    numbers.power(current.power(n), base);
+
+                    if(slots != null && shortcuts.saves[n] != 0) slots[shortcuts.saves[n] - 1] = numbers.peek(base);
+                    break;
+                case Expression.CONSTANT:
+                    numbers.push(current.values[n]);
+                    break;
+                default:
+
+                    String name = current.tokens[n];
+
+                    Quantity value = snapshot.value(name);
+
+                    if(value != null){
+                        numbers.push(value);
+                        break;
+                    }
+
+                    Expression locked = snapshot.lock(name);
+
+                    if(locked != null){
+
+                        value = snapshot.cachedLock(name);
+
+                        Metrics.instance.lockRead(value != null);
+
+                        if(value != null){
+                            numbers.push(value);
+                            break;
+                        }
+
+                        if(evaluating == null) evaluating = new HashSet<>();
+
+                        if(!evaluating.add(name)){
+                            throw new LoopException(name);
+                        }
+
+                        if(frames == null) frames = new ArrayDeque<>();
+
+                        frames.push(new Frame(lock, current, slots, base, next));
+                        depth = Math.max(depth, frames.size());
+
+                        lock = name;
+                        current = locked;
+                        slots = slots(locked);
+                        base = numbers.size();
+                        next = 0;
+                        break;
+                    }
+
+                    numbers.push(current.literal(n));
+            }
+        }
+    }
+
+    /**
+     * @return the slots for the repeated subexpressions of an expression, or null if it has none
+     */
+    private static Quantity[] slots(Expression expression){
+
+        Shortcuts shortcuts = expression.shortcuts;
+
+        return shortcuts == null || shortcuts.slots == 0 ? null : new Quantity[shortcuts.slots];
+    }
+
+    /**
+     * Checks that none of the literals read by a constant subexpression has since become a label or lock.
+     *
+     * @param literals the literals, or null if there are none
+     * @return can the subexpression's value be used
+     */
+    private static boolean unshadowed(String[] literals, Workspace.Snapshot snapshot){
+
+        if(literals == null) return true;
+
+        for(String literal : literals){
+            if(snapshot.containsLabel(literal) || snapshot.containsLock(literal)) return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * An expression part way through evaluation, saved while a lock it reads is evaluated.
+     */
+    private static final class Frame {
+
+        /**
+         * The lock being evaluated, or null for the expression that was entered.
+         */
+        final String lock;
+
+        final Expression expression;
+
+        /**
+         * The results saved for the expression's repeated subexpressions.
+         */
+        final Quantity[] slots;
+
+        /**
+         * The start of this frame's operands on the operand stack.
+         */
+        final int base;
+
+        /**
+         * The next token to evaluate.
+         */
+        final int next;
+
+        Frame(String lock, Expression expression, Quantity[] slots, int base, int next){
+            this.lock = lock;
+            this.expression = expression;
+            this.slots = slots;
+            this.base = base;
+            this.next = next;
+        }
+    }
+}
@@ -0,0 +1,358 @@
+
+/*
+ *  Copyright ©, 2020, Joseph E. Hand
+ *
+ *  This file is part of PhysiCalc.
+ *
+ *  PhysiCalc is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  PhysiCalc is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with PhysiCalc.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package jehand.physicalc;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The parts of an {@link Expression} that can be skipped when it is evaluated.
+ *
+ * A constant subexpression, whose inputs are all built-in constants and literals, is worked out once when the
+ * expression is compiled. A subexpression that repeats an earlier one in the same expression takes the earlier one's
+ * result, which is saved in a slot while the expression is evaluated. Both are computed with the same operations in
+ * the same order as evaluating every token, so the results are exactly the same.
+ *
+ * A literal such as "5m" could later become the name of a label or lock, so each constant subexpression keeps the
+ * literals it read, and is only used while none of them is a label or lock. Subexpressions that fail to compute, such
+ * as adding different units, are left to be evaluated so they fail in the same way. All arrays are indexed by token
+ * position.
+ */
+
+final class Shortcuts {
+
+    /**
+     * The value of the constant subexpression starting at each token.
+     */
+    final Quantity[] folded;
+
+    /**
+     * The position after the constant subexpression starting at each token.
+     */
+    final int[] foldEnds;
+
+    /**
+     * The literals read by the constant subexpression starting at each token, or null if it only reads constants.
+     */
+    final String[][] guards;
+
+    /**
+     * The slot, plus one, holding the result of an earlier copy of the subexpression starting at each token.
+     */
+    final int[] reuses;
+
+    /**
+     * The position after the repeated subexpression starting at each token.
+     */
+    final int[] reuseEnds;
+
+    /**
+     * The slot, plus one, to save the result in after each token, when it ends a subexpression repeated later.
+     */
+    final int[] saves;
+
+    /**
+     * The number of slots needed to evaluate the expression once.
+     */
+    final int slots;
+
+    private Shortcuts(Quantity[] folded, int[] foldEnds, String[][] guards, int[] reuses, int[] reuseEnds, int[] saves, int slots){
+        this.folded = folded;
+        this.foldEnds = foldEnds;
+        this.guards = guards;
+        this.reuses = reuses;
+        this.reuseEnds = reuseEnds;
+        this.saves = saves;
+        this.slots = slots;
+    }
+
+    /**
+     * Finds the constant and repeated subexpressions of an expression.
+     *
+     * @param expression the expression, with its tokens compiled
+     * @return the shortcuts, or null if there are none
+     */
+    static Shortcuts find(Expression expression){
+
+        int length = expression.length();
+        byte[] ops = expression.ops;
+
+        // the smallest expression with an operation and two inputs
+        if(length < 3) return null;
+
+        // the first token of the subexpression ending at each token, and its value if it only reads constants and literals
+        int[] starts = new int[length];
+        Quantity[] values = new Quantity[length];
+
+        // the tokens that are understood, up to the first operation that runs out of operands
+        int valid = 0;
+
+        int[] stack = new int[length];
+        int depth = 0;
+
+        for(; valid < length; valid++){
+
+            int n = valid;
+
+            switch(ops[n]){
+                case Expression.ADD:
+                case Expression.SUBTRACT:
+                case Expression.MULTIPLY:
+                case Expression.DIVIDE:
+
+                    if(depth < 2) break;
+
+                    int top = stack[--depth];
+                    int second = stack[--depth];
+
+                    starts[n] = starts[second];
+
+                    if(values[top] != null && values[second] != null){
+                        values[n] = apply(ops[n], values[second], values[top]);
+                    }
+
+                    stack[depth++] = n;
+                    continue;
+                case Expression.POWER:
+
+                    if(depth < 1) break;
+
+                    starts[n] = starts[stack[depth - 1]];
+
+                    if(values[stack[depth - 1]] != null && expression.errors[n] == null){
+                        values[n] = power(values[stack[depth - 1]], expression.powers[n]);
+                    }
+
+                    stack[depth - 1] = n;
+                    continue;
+                default:
+
+                    starts[n] = n;
+
+                    // a literal with an error, and "ans", have no value
+                    values[n] = expression.values[n];
+
+                    stack[depth++] = n;
+                    continue;
+            }
+
+            break;
+        }
+
+        Quantity[] folded = new Quantity[length];
+        int[] foldEnds = new int[length];
+        String[][] guards = new String[length][];
+        boolean folds = false;
+
+        // the largest constant subexpressions are found first, since they end after the ones inside them
+        int covered = valid;
+
+        for(int n = valid - 1; n >= 0; n--){
+
+            if(n >= covered || values[n] == null || starts[n] == n) continue;
+
+            int start = starts[n];
+
+            folded[start] = values[n];
+            foldEnds[start] = n + 1;
+            guards[start] = literals(expression, start, n + 1);
+            folds = true;
+
+            covered = start;
+        }
+
+        int[] reuses = new int[length];
+        int[] reuseEnds = new int[length];
+        int[] saves = new int[length];
+        int slots = repeats(expression, valid, starts, values, reuses, reuseEnds, saves);
+
+        if(!folds && slots == 0) return null;
+
+        return new Shortcuts(folded, foldEnds, guards, reuses, reuseEnds, saves, slots);
+    }
+
+    /**
+     * Finds subexpressions that repeat an earlier one, other than constant ones.
+     *
+     * Tokens are walked in the order they are evaluated, skipping the repeats. At each token, the largest
+     * subexpression starting there that copies one already evaluated is replaced.
+     *
+     * @return the number of slots used
+     */
+    private static int repeats(Expression expression, int valid, int[] starts, Quantity[] values, int[] reuses, int[] reuseEnds, int[] saves){
+
+        // the subexpressions starting at each token, from the smallest, linked by the position they end at
+        int[] firstEnding = new int[valid];
+        int[] nextEnding = new int[valid];
+        int[] lastEnding = new int[valid];
+
+        long[] hashes = new long[valid];
+        int[] stack = new int[valid];
+        int depth = 0;
+
+        for(int n = 0; n < valid; n++){
+
+            long hash = expression.tokens[n].hashCode();
+
+            switch(expression.ops[n]){
+                case Expression.ADD:
+                case Expression.SUBTRACT:
+                case Expression.MULTIPLY:
+                case Expression.DIVIDE:
+                    int top = stack[--depth];
+                    int second = stack[--depth];
+                    hash = (hashes[second] * 31 + hashes[top]) * 0x9E3779B97F4A7C15L + hash;
+                    break;
+                case Expression.POWER:
+                    hash = hashes[stack[--depth]] * 0x9E3779B97F4A7C15L + hash;
+            }
+
+            hashes[n] = hash;
+            stack[depth++] = n;
+
+            if(starts[n] == n) continue;
+
+            if(lastEnding[starts[n]] == 0){
+                firstEnding[starts[n]] = n;
+            }else{
+                nextEnding[lastEnding[starts[n]]] = n;
+            }
+
+            lastEnding[starts[n]] = n;
+        }
+
+        // the end of the first copy of each subexpression evaluated so far, by hash
+        Map<Long, List<Integer>> seen = new HashMap<>();
+        int slots = 0;
+        int n = 0;
+
+        while(n < valid){
+
+            int repeat = -1;
+            int original = -1;
+
+            for(int end = firstEnding[n]; end != 0; end = nextEnding[end]){
+
+                if(values[end] != null) continue;
+
+                int match = find(expression, seen.get(hashes[end]), starts, n, end);
+
+                if(match >= 0){
+                    repeat = end;
+                    original = match;
+                }
+            }
+
+            if(repeat >= 0){
+
+                if(saves[original] == 0){
+                    saves[original] = ++slots;
+                }
+
+                reuses[n] = saves[original];
+                reuseEnds[n] = repeat + 1;
+                n = repeat + 1;
+                continue;
+            }
+
+            if(starts[n] != n && values[n] == null){
+                seen.computeIfAbsent(hashes[n], (hash) -> new ArrayList<>(1)).add(n);
+            }
+
+            n++;
+        }
+
+        return slots;
+    }
+
+    /**
+     * @return the end of the subexpression in candidates with the same tokens as the one from start to end, or -1
+     */
+    private static int find(Expression expression, List<Integer> candidates, int[] starts, int start, int end){
+
+        if(candidates == null) return -1;
+
+        for(int candidate : candidates){
+
+            int from = starts[candidate];
+
+            if(candidate - from != end - start) continue;
+
+            boolean same = true;
+
+            for(int n = 0; same && n <= end - start; n++){
+                same = expression.tokens[from + n].equals(expression.tokens[start + n]);
+            }
+
+            if(same) return candidate;
+        }
+
+        return -1;
+    }
+
+    /**
+     * @return the literals read between two positions, or null if there are none
+     */
+    private static String[] literals(Expression expression, int from, int to){
+
+        List<String> literals = new ArrayList<>();
+
+        for(int n = from; n < to; n++){
+            if(expression.ops[n] == Expression.NAME) literals.add(expression.tokens[n]);
+        }
+
+        return literals.isEmpty() ? null : literals.toArray(new String[0]);
+    }
+
+    /**
+     * Works out an operation the way {@link OperandStack} does, or gives null if it fails.
+     */
+    private static Quantity apply(byte op, Quantity second, Quantity top){
+
+        OperandStack stack = new OperandStack();
+        stack.push(second);
+        stack.push(top);
+
+        try {
+            stack.apply(op, 0);
+        }catch(RuntimeException e){
+            return null;
+        }
+
+        return stack.pop(0);
+    }
+
+    private static Quantity power(Quantity value, int power){
+
+        OperandStack stack = new OperandStack();
+        stack.push(value);
+
+        try {
+            stack.power(power, 0);
+        }catch(RuntimeException e){
+            return null;
+        }
+
+        return stack.pop(0);
+    }
+}
@@ -0,0 +1,297 @@
+
+/*
+ *  Copyright ©, 2020, Joseph E. Hand
+ *
+ *  This file is part of PhysiCalc.
+ *
+ *  PhysiCalc is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  PhysiCalc is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with PhysiCalc.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package jehand.physicalc;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * A parameter sweep: {@code sweep <name> from <start> to <end> step <step> [sweep ...] eval <expression> [in <units>] [into <file>]}
+ *
+ * Each sweep sets a label to every value from start to end, and the expression is evaluated at every point of the
+ * grid they make, with the first sweep changing slowest. The output is a tab-separated table with a header line, then
+ * a row for each point holding the swept values and the result.
+ *
+ * Points are evaluated in blocks on the common fork-join pool. Each block is split between workers that have their
+ * own copy of the labels and locks, so only the locks that read a swept label are evaluated again at each point. Rows
+ * are written in order as each block finishes, and only one block is held at a time, so the memory used doesn't grow
+ * with the number of points.
+ */
+
+final class Sweep {
+
+    static final String usage = "Use: sweep <name> from <start> to <end> step <step> [sweep ...] eval <expression> [in <units>] [into <file>]";
+
+    /**
+     * The most points written out as a command's output rather than to a file.
+     */
+    static final int printedLimit = 10000;
+
+    /**
+     * The points evaluated before their rows are written.
+     */
+    private static final int blockPoints = 1 << 14;
+
+    /**
+     * The fewest points worth handing to a worker.
+     */
+    private static final int sliceMinimum = 64;
+
+    /**
+     * The swept labels, slowest changing first.
+     */
+    final String[] names;
+
+    private final UncertainValue[] starts;
+
+    private final double[] steps;
+
+    /**
+     * The number of values each label takes.
+     */
+    private final long[] counts;
+
+    /**
+     * The number of points in the grid.
+     */
+    final long points;
+
+    final Expression expression;
+
+    /**
+     * The units results are written in, or null to write them in their own units.
+     */
+    private final Conversion conversion;
+
+    /**
+     * The file the table is written to, or null if it is the command's output.
+     */
+    final String file;
+
+    private final String header;
+
+    private Sweep(List<String> names, List<UncertainValue[]> limits, String[] expression, String units, String file){
+
+        this.names = names.toArray(new String[0]);
+        this.starts = new UncertainValue[this.names.length];
+        this.steps = new double[this.names.length];
+        this.counts = new long[this.names.length];
+
+        long points = 1;
+
+        for(int n = 0; n < this.names.length; n++){
+
+            UncertainValue start = limits.get(n)[0];
+            UncertainValue end = limits.get(n)[1];
+            UncertainValue step = limits.get(n)[2];
+
+            if(start.units.dimensions != end.units.dimensions || start.units.dimensions != step.units.dimensions){
+                throw new IllegalArgumentException("The start, end and step of a sweep must have the same units.");
+            }
+
+            double span = (end.value - start.value) / step.value;
+
+            if(!(span >= 0) || Double.isInfinite(span)){
+                throw new IllegalArgumentException("The step of a sweep must go from its start toward its end.");
+            }
+
+            starts[n] = start;
+            steps[n] = step.value;
+            counts[n] = (long) Math.floor(span + 1e-9) + 1;
+
+            try {
+                points = Math.multiplyExact(points, counts[n]);
+            }catch(ArithmeticException e){
+                throw new IllegalArgumentException("That sweep has too many points.");
+            }
+        }
+
+        this.points = points;
+        this.expression = Expression.compile(expression);
+        this.conversion = units == null ? null : Conversion.to(units);
+        this.file = file;
+        this.header = String.join("\t", names) + "\t" + String.join(" ", expression) + (units == null ? "" : " in " + units) + "\n";
+    }
+
+    /**
+     * Reads a sweep command.
+     *
+     * @param args the command's tokens, starting with "sweep"
+     * @param limits evaluates the start, end, and step of each sweep
+     * @return the sweep
+     * @throws IllegalArgumentException if the command isn't a valid sweep
+     */
+    static Sweep parse(String[] args, Function<String, Quantity> limits){
+
+        List<String> names = new ArrayList<>();
+        List<UncertainValue[]> values = new ArrayList<>();
+        int n = 0;
+
+        while(n + 8 <= args.length && args[n].equals("sweep")){
+
+            if(!args[n + 2].equals("from") || !args[n + 4].equals("to") || !args[n + 6].equals("step")){
+                throw new IllegalArgumentException(usage);
+            }
+
+            if(names.contains(args[n + 1])){
+                throw new IllegalArgumentException("A label can only be swept once.");
+            }
+
+            names.add(args[n + 1]);
+            values.add(new UncertainValue[]{limit(limits, args[n + 3]), limit(limits, args[n + 5]), limit(limits, args[n + 7])});
+            n += 8;
+        }
+
+        int end = args.length;
+        String file = null;
+        String units = null;
+
+        if(end - n > 3 && args[end - 2].equals("into")){
+            file = args[end - 1];
+            end -= 2;
+        }
+
+        if(end - n > 3 && args[end - 2].equals("in")){
+            units = args[end - 1];
+            end -= 2;
+        }
+
+        if(names.isEmpty() || end - n < 2 || !args[n].equals("eval")){
+            throw new IllegalArgumentException(usage);
+        }
+
+        return new Sweep(names, values, Arrays.copyOfRange(args, n + 1, end), units, file);
+    }
+
+    private static UncertainValue limit(Function<String, Quantity> limits, String token){
+
+        Quantity value = limits.apply(token);
+
+        if(!(value instanceof UncertainValue)){
+            throw new IllegalArgumentException("The limits of a sweep must be single values.");
+        }
+
+        return (UncertainValue) value;
+    }
+
+    /**
+     * Evaluates every point and writes the table.
+     *
+     * @param workers creates a private session for each worker, all with the same labels, locks and "ans"
+     * @param out where the table is written
+     * @throws IOException if the table can't be written
+     */
+    void run(Supplier<Session> workers, Writer out) throws IOException {
+
+        Queue<Session> idle = new ConcurrentLinkedQueue<>();
+        int parallelism = ForkJoinPool.getCommonPoolParallelism() + 1;
+
+        out.write(header);
+
+        for(long first = 0; first < points; first += blockPoints){
+
+            int size = (int) Math.min(blockPoints, points - first);
+            int slices = Math.max(1, Math.min(parallelism, size / sliceMinimum));
+
+            StringBuilder[] rows = new StringBuilder[slices];
+            List<ForkJoinTask<?>> tasks = new ArrayList<>(slices);
+
+            for(int n = 0; n < slices; n++){
+
+                int slice = n;
+                long from = first + (long) n * size / slices;
+                long to = first + (long) (n + 1) * size / slices;
+
+                tasks.add(ForkJoinTask.adapt(() -> {
+
+                    Session worker = idle.poll();
+
+                    if(worker == null) worker = workers.get();
+
+                    rows[slice] = rows(worker, from, to);
+                    idle.add(worker);
+                }));
+            }
+
+            ForkJoinTask.invokeAll(tasks);
+
+            for(StringBuilder slice : rows){
+                out.append(slice);
+            }
+        }
+
+        out.flush();
+    }
+
+    /**
+     * Evaluates a range of points on one worker.
+     */
+    private StringBuilder rows(Session worker, long from, long to){
+
+        StringBuilder rows = new StringBuilder((int) (to - from) * 64);
+
+        // the index and written value of each label the worker has now, so only the labels that change are set
+        long[] indices = new long[names.length];
+        String[] shown = new String[names.length];
+        Arrays.fill(indices, -1);
+
+        for(long point = from; point < to; point++){
+
+            long rest = point;
+
+            for(int n = names.length - 1; n >= 0; n--){
+
+                long index = rest % counts[n];
+                rest /= counts[n];
+
+                if(index != indices[n]){
+
+                    UncertainValue value = new UncertainValue(starts[n].value + index * steps[n], starts[n].uncertainty, starts[n].units, false, true);
+
+                    worker.setLabel(names[n], value);
+                    indices[n] = index;
+                    shown[n] = value.toString();
+                }
+            }
+
+            for(String value : shown){
+                rows.append(value).append('\t');
+            }
+
+            try {
+                Quantity result = worker.evaluateExpression(expression);
+                rows.append(conversion == null ? result.toString() : conversion.format(result));
+            }catch(RuntimeException e){
+                rows.append(Session.errorMessage(e));
+            }
+
+            rows.append('\n');
+        }
+
+        return rows;
+    }
+}
@@ -0,0 +1,304 @@
+
+/*
+ *  Copyright ©, 2020, Joseph E. Hand
+ *
+ *  This file is part of PhysiCalc.
+ *
+ *  PhysiCalc is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  PhysiCalc is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with PhysiCalc.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package jehand.physicalc;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The units, constants, and help text from the files in assets, ready to use.
+ *
+ * The build compiles the text files into assets/tables.bin, which is read without any parsing. When it is missing,
+ * such as when running straight from an IDE, the text files are read instead.
+ *
+ * tables.bin holds a magic number, then the units as (abbreviation, name, description, dimensions, factor, metric),
+ * the constants as (symbol, name, description, value, uncertainty, value text, uncertainty text, units), and the help
+ * text as (key, text), each list preceded by its length. Strings are an int length and UTF-8 bytes.
+ */
+
+final class Tables {
+
+    static final String resource = "/assets/tables.bin";
+
+    private static final int magic = 0x50435431;
+
+
+    final String[] unitAbbreviations;
+    final String[] unitNames;
+    final String[] unitDescriptions;
+    final long[] unitDimensions;
+    final double[] unitFactors;
+    final boolean[] unitMetric;
+
+    final String[] constantSymbols;
+    final String[] constantNames;
+    final String[] constantDescriptions;
+    final double[] constantValues;
+    final double[] constantUncertainties;
+
+    /**
+     * The value and uncertainty as written in constants.txt, for the table shown by "list constants".
+     */
+    final String[] constantValueTexts;
+    final String[] constantUncertaintyTexts;
+
+    final String[] constantUnits;
+
+    final String[] infoKeys;
+    final String[] infoTexts;
+
+    private Tables(int units, int constants, int info){
+
+        unitAbbreviations = new String[units];
+        unitNames = new String[units];
+        unitDescriptions = new String[units];
+        unitDimensions = new long[units];
+        unitFactors = new double[units];
+        unitMetric = new boolean[units];
+
+        constantSymbols = new String[constants];
+        constantNames = new String[constants];
+        constantDescriptions = new String[constants];
+        constantValues = new double[constants];
+        constantUncertainties = new double[constants];
+        constantValueTexts = new String[constants];
+        constantUncertaintyTexts = new String[constants];
+        constantUnits = new String[constants];
+
+        infoKeys = new String[info];
+        infoTexts = new String[info];
+    }
+
+    /**
+     * @return the tables used by this program, loaded the first time they are asked for
+     */
+    static Tables instance(){
+        return Loaded.instance;
+    }
+
+    /**
+     * Holds the loaded tables, so the build can use this class to write them without loading them first.
+     */
+    private static final class Loaded {
+        private static final Tables instance = load();
+    }
+
+    private static Tables load(){
+
+        InputStream in = Tables.class.getResourceAsStream(resource);
+
+        if(in != null){
+
+            try(DataInputStream data = new DataInputStream(new BufferedInputStream(in))){
+                return read(data);
+            }catch(IOException e){
+                System.err.println("Could not load resources: \"" + resource + "\"");
+            }
+        }
+
+        return fromText(ResourceLoader.loadCSVObjectFormat("/assets/units.txt"), ResourceLoader.loadCSVObjectFormat("/assets/constants.txt"),
+                ResourceLoader.loadTextResources("/assets/info.txt"));
+    }
+
+    /**
+     * Builds the tables from the text files in a directory.
+     *
+     * @param assets the directory holding units.txt, constants.txt, and info.txt
+     * @return the tables
+     * @throws IOException if a file can't be read
+     */
+    static Tables fromText(File assets) throws IOException {
+
+        try(InputStream units = new FileInputStream(new File(assets, "units.txt"));
+            InputStream constants = new FileInputStream(new File(assets, "constants.txt"));
+            InputStream info = new FileInputStream(new File(assets, "info.txt"))){
+
+            return fromText(ResourceLoader.loadCSVObjectFormat(units), ResourceLoader.loadCSVObjectFormat(constants), ResourceLoader.loadTextResources(info));
+        }
+    }
+
+    private static Tables fromText(String[][] units, String[][] constants, Map<String, String> info){
+
+        Tables tables = new Tables(units.length, constants.length, info.size());
+
+        for(int n = 0; n < units.length; n++){
+            tables.unitAbbreviations[n] = units[n][0];
+            tables.unitNames[n] = units[n][1];
+            tables.unitDescriptions[n] = units[n][2];
+            tables.unitDimensions[n] = decodeDimensions(units[n][3]);
+            tables.unitFactors[n] = Double.parseDouble(units[n][4]);
+            tables.unitMetric[n] = units[n][5].equals("T");
+        }
+
+        for(int n = 0; n < constants.length; n++){
+            tables.constantSymbols[n] = constants[n][0];
+            tables.constantNames[n] = constants[n][1];
+            tables.constantDescriptions[n] = constants[n][2];
+            tables.constantValues[n] = Double.parseDouble(constants[n][3]);
+            tables.constantUncertainties[n] = Double.parseDouble(constants[n][4]);
+            tables.constantValueTexts[n] = constants[n][3];
+            tables.constantUncertaintyTexts[n] = constants[n][4];
+            tables.constantUnits[n] = constants[n][5];
+        }
+
+        int n = 0;
+
+        for(Map.Entry<String, String> entry : info.entrySet()){
+            tables.infoKeys[n] = entry.getKey();
+            tables.infoTexts[n++] = entry.getValue();
+        }
+
+        return tables;
+    }
+
+    /**
+     * Converts dimensions from the units.txt format to packed dimensions.
+     *
+     * In units.txt each digit is the power of the corresponding dimension, offset by 5, with the least significant digit
+     * for meters. Area (meters-squared) is 555557. Missing leading digits are taken as 5, a power of zero.
+     *
+     * @param digits the dimensions as written in units.txt
+     * @return the packed dimensions
+     */
+    private static long decodeDimensions(String digits){
+
+        digits = digits.trim();
+
+        long dimensions = 0;
+
+        for(int n = 0; n < digits.length(); n++){
+            dimensions += (digits.charAt(digits.length() - 1 - n) - '5') * (1L << (8 * n));
+        }
+
+        return dimensions;
+    }
+
+    private static Tables read(DataInputStream in) throws IOException {
+
+        if(in.readInt() != magic){
+            throw new IOException("Not a table file");
+        }
+
+        int units = in.readInt();
+        int constants = in.readInt();
+        int info = in.readInt();
+
+        Tables tables = new Tables(units, constants, info);
+
+        for(int n = 0; n < units; n++){
+            tables.unitAbbreviations[n] = readString(in);
+            tables.unitNames[n] = readString(in);
+            tables.unitDescriptions[n] = readString(in);
+            tables.unitDimensions[n] = in.readLong();
+            tables.unitFactors[n] = in.readDouble();
+            tables.unitMetric[n] = in.readBoolean();
+        }
+
+        for(int n = 0; n < constants; n++){
+            tables.constantSymbols[n] = readString(in);
+            tables.constantNames[n] = readString(in);
+            tables.constantDescriptions[n] = readString(in);
+            tables.constantValues[n] = in.readDouble();
+            tables.constantUncertainties[n] = in.readDouble();
+            tables.constantValueTexts[n] = readString(in);
+            tables.constantUncertaintyTexts[n] = readString(in);
+            tables.constantUnits[n] = readString(in);
+        }
+
+        for(int n = 0; n < info; n++){
+            tables.infoKeys[n] = readString(in);
+            tables.infoTexts[n] = readString(in);
+        }
+
+        return tables;
+    }
+
+    /**
+     * Writes the tables in the format of tables.bin.
+     *
+     * @param out the stream
+     * @throws IOException if the stream can't be written
+     */
+    void write(DataOutputStream out) throws IOException {
+
+        out.writeInt(magic);
+        out.writeInt(unitAbbreviations.length);
+        out.writeInt(constantSymbols.length);
+        out.writeInt(infoKeys.length);
+
+        for(int n = 0; n < unitAbbreviations.length; n++){
+            writeString(out, unitAbbreviations[n]);
+            writeString(out, unitNames[n]);
+            writeString(out, unitDescriptions[n]);
+            out.writeLong(unitDimensions[n]);
+            out.writeDouble(unitFactors[n]);
+            out.writeBoolean(unitMetric[n]);
+        }
+
+        for(int n = 0; n < constantSymbols.length; n++){
+            writeString(out, constantSymbols[n]);
+            writeString(out, constantNames[n]);
+            writeString(out, constantDescriptions[n]);
+            out.writeDouble(constantValues[n]);
+            out.writeDouble(constantUncertainties[n]);
+            writeString(out, constantValueTexts[n]);
+            writeString(out, constantUncertaintyTexts[n]);
+            writeString(out, constantUnits[n]);
+        }
+
+        for(int n = 0; n < infoKeys.length; n++){
+            writeString(out, infoKeys[n]);
+            writeString(out, infoTexts[n]);
+        }
+    }
+
+    /**
+     * @return the help text, keyed as in info.txt
+     */
+    Map<String, String> info(){
+
+        Map<String, String> info = new HashMap<>();
+
+        for(int n = 0; n < infoKeys.length; n++){
+            info.put(infoKeys[n], infoTexts[n]);
+        }
+
+        return info;
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeString(DataOutputStream out, String string) throws IOException {
+
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+}
@@ -0,0 +1,410 @@
+/*
+ *  Copyright ©, 2020, Joseph E. Hand
+ *
+ *  This file is part of PhysiCalc.
+ *
+ *  PhysiCalc is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  PhysiCalc is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with PhysiCalc.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package jehand.physicalc;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * A series of measurements that share the same units, such as a column of results from one detector run.
+ *
+ * The values and uncertainties are stored in their own arrays rather than as one object per measurement, and the
+ * units are only checked once per operation. Operations work element by element, and a single value is applied to
+ * every element. Large series are split across cores.
+ */
+
+public class UncertainSeries implements Quantity {
+
+    static final int ADD = 0;
+    static final int SUBTRACT = 1;
+    static final int MULTIPLY = 2;
+    static final int DIVIDE = 3;
+    static final int POWER = 4;
+
+    /**
+     * Series longer than this are split into parts of at most this size and evaluated in parallel.
+     */
+    private static final int parallelThreshold = 1 << 14;
+
+    /**
+     * The number of elements written out by {@link #toString()} before the rest are summarised.
+     */
+    private static final int printedElements = 8;
+
+    /**
+     * The values of the measurements.
+     */
+    final double[] value;
+
+    /**
+     * The absolute uncertainties of the measurements.
+     */
+    final double[] uncertainty;
+
+    /**
+     * The units of every measurement.
+     */
+    final Units units;
+
+    /**
+     * Creates a series from values already scaled to standard units. The arrays are not copied.
+     *
+     * @param value the values
+     * @param uncertainty the absolute uncertainties
+     * @param units the units
+     */
+    UncertainSeries(double[] value, double[] uncertainty, Units units){
+
+        if(value.length != uncertainty.length){
+            throw new IllegalArgumentException("Every value in a series needs an uncertainty.");
+        }
+
+        this.value = value;
+        this.uncertainty = uncertainty;
+        this.units = units;
+    }
+
+    /**
+     * Creates a series from values in the given units, scaling the arrays to standard units in place.
+     *
+     * @param value the values
+     * @param uncertainty the absolute uncertainties
+     * @param units the units
+     * @return the series
+     */
+    static UncertainSeries scaled(double[] value, double[] uncertainty, Units units){
+
+        double factor = units.getFactor();
+
+        if(factor != 1){
+            for(int n = 0; n < value.length; n++){
+                value[n] *= factor;
+                uncertainty[n] *= factor;
+            }
+        }
+
+        return new UncertainSeries(value, uncertainty, units);
+    }
+
+    /**
+     * @return the number of measurements
+     */
+    public int size(){
+        return value.length;
+    }
+
+    /**
+     * Gets one measurement of the series.
+     *
+     * @param n the index
+     * @return the measurement
+     */
+    public UncertainValue get(int n){
+        return new UncertainValue(value[n], uncertainty[n], units, false, true);
+    }
+
+    public Units getUnits(){
+        return units;
+    }
+
+    public Quantity add(Quantity other){
+        return combine(this, other, ADD);
+    }
+
+    public Quantity subtract(Quantity other){
+        return combine(this, other, SUBTRACT);
+    }
+
+    public Quantity multiply(Quantity other){
+        return combine(this, other, MULTIPLY);
+    }
+
+    public Quantity divide(Quantity other){
+        return combine(this, other, DIVIDE);
+    }
+
+    public Quantity power(int power){
+
+        UncertainSeries result = new UncertainSeries(new double[value.length], new double[value.length], Units.power(units, power));
+
+        run(new Kernel(POWER, this, null, power, result, 0, value.length));
+
+        return result;
+    }
+
+    /**
+     * Applies an operation element by element. At least one side must be a series, and if both are they must be
+     * the same length.
+     *
+     * @param left the left side
+     * @param right the right side
+     * @param operation ADD, SUBTRACT, MULTIPLY or DIVIDE
+     * @return the result
+     */
+    static UncertainSeries combine(Quantity left, Quantity right, int operation){
+
+        int length = left instanceof UncertainSeries ? ((UncertainSeries) left).size() : ((UncertainSeries) right).size();
+
+        if(left instanceof UncertainSeries && right instanceof UncertainSeries && ((UncertainSeries) right).size() != length){
+            throw new IllegalArgumentException("Can't combine series with different lengths: " + length + " and " + ((UncertainSeries) right).size() + ".");
+        }
+
+        Units units;
+
+        switch(operation){
+            case ADD:
+            case SUBTRACT:
+
+                if(!left.getUnits().equals(right.getUnits())){
+                    throw new IllegalArgumentException("Can't add/subtract values with different units.");
+                }
+
+                units = left.getUnits();
+                break;
+            case MULTIPLY:
+                units = Units.multiply(left.getUnits(), right.getUnits());
+                break;
+            default:
+                units = Units.divide(left.getUnits(), right.getUnits());
+        }
+
+        UncertainSeries result = new UncertainSeries(new double[length], new double[length], units);
+
+        run(new Kernel(operation, left, right, 0, result, 0, length));
+
+        return result;
+    }
+
+    private static void run(Kernel kernel){
+
+        if(kernel.to - kernel.from > parallelThreshold){
+            ForkJoinPool.commonPool().invoke(kernel);
+        }else{
+            kernel.compute();
+        }
+    }
+
+    /**
+     * Applies an operation to part of a series, splitting it in half until the parts are small enough.
+     *
+     * A single value on either side is read through an index mask of zero, so every element reads the same value.
+     */
+    private static final class Kernel extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int operation;
+        private final double[] leftValue, leftUncertainty, rightValue, rightUncertainty;
+        private final int leftMask, rightMask;
+        private final int power;
+        private final UncertainSeries result;
+        private final int from, to;
+
+        Kernel(int operation, Quantity left, Quantity right, int power, UncertainSeries result, int from, int to){
+
+            this.operation = operation;
+            this.power = power;
+            this.result = result;
+            this.from = from;
+            this.to = to;
+
+            if(left instanceof UncertainSeries){
+                leftValue = ((UncertainSeries) left).value;
+                leftUncertainty = ((UncertainSeries) left).uncertainty;
+                leftMask = -1;
+            }else{
+                leftValue = new double[]{((UncertainValue) left).value};
+                leftUncertainty = new double[]{((UncertainValue) left).uncertainty};
+                leftMask = 0;
+            }
+
+            if(right == null){
+                rightValue = rightUncertainty = null;
+                rightMask = 0;
+            }else if(right instanceof UncertainSeries){
+                rightValue = ((UncertainSeries) right).value;
+                rightUncertainty = ((UncertainSeries) right).uncertainty;
+                rightMask = -1;
+            }else{
+                rightValue = new double[]{((UncertainValue) right).value};
+                rightUncertainty = new double[]{((UncertainValue) right).uncertainty};
+                rightMask = 0;
+            }
+        }
+
+        private Kernel(Kernel parent, int from, int to){
+
+            this.operation = parent.operation;
+            this.leftValue = parent.leftValue;
+            this.leftUncertainty = parent.leftUncertainty;
+            this.rightValue = parent.rightValue;
+            this.rightUncertainty = parent.rightUncertainty;
+            this.leftMask = parent.leftMask;
+            this.rightMask = parent.rightMask;
+            this.power = parent.power;
+            this.result = parent.result;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute(){
+
+            if(to - from > parallelThreshold){
+
+                int middle = (from + to) >>> 1;
+
+                invokeAll(new Kernel(this, from, middle), new Kernel(this, middle, to));
+                return;
+            }
+
+            double[] value = result.value;
+            double[] uncertainty = result.uncertainty;
+
+            switch(operation){
+                case ADD:
+                    for(int n = from; n < to; n++){
+                        value[n] = leftValue[n & leftMask] + rightValue[n & rightMask];
+                        uncertainty[n] = leftUncertainty[n & leftMask] + rightUncertainty[n & rightMask];
+                    }
+                    break;
+                case SUBTRACT:
+                    for(int n = from; n < to; n++){
+                        value[n] = leftValue[n & leftMask] - rightValue[n & rightMask];
+                        uncertainty[n] = leftUncertainty[n & leftMask] + rightUncertainty[n & rightMask];
+                    }
+                    break;
+                case MULTIPLY:
+                    for(int n = from; n < to; n++){
+                        double a = leftValue[n & leftMask], b = rightValue[n & rightMask];
+                        value[n] = a * b;
+                        uncertainty[n] = UncertainValue.productUncertainty(a, leftUncertainty[n & leftMask], b, rightUncertainty[n & rightMask]);
+                    }
+                    break;
+                case DIVIDE:
+                    for(int n = from; n < to; n++){
+                        double a = leftValue[n & leftMask], b = rightValue[n & rightMask];
+                        value[n] = a / b;
+                        uncertainty[n] = UncertainValue.quotientUncertainty(a, leftUncertainty[n & leftMask], b, rightUncertainty[n & rightMask]);
+                    }
+                    break;
+                default:
+                    for(int n = from; n < to; n++){
+                        double a = leftValue[n];
+                        value[n] = Math.pow(a, power);
+                        uncertainty[n] = UncertainValue.powerUncertainty(a, leftUncertainty[n], power, value[n]);
+                    }
+            }
+        }
+    }
+
+    /**
+     * Converts this series to a string: [1.0+-0.1, 2.0+-0.1] m/s. Long series only show their first few elements
+     * and their length.
+     *
+     * @return the string
+     */
+    public String toString(){
+        return toString(units.getDisplayFactor(), units.getDisplayName());
+    }
+
+    /**
+     * Converts this series to a string in the specified units.
+     *
+     * @param units the units to output in.
+     * @return the string
+     */
+    public String toString(String units){
+
+        return Conversion.to(units).format(this);
+    }
+
+    /**
+     * Writes the series with every element divided by a factor, followed by the name of the units.
+     */
+    String toString(double factor, String name){
+
+        StringBuilder out = new StringBuilder(32 * Math.min(value.length, printedElements + 1)).append('[');
+
+        for(int n = 0; n < value.length && n < printedElements; n++){
+
+            if(n > 0) out.append(", ");
+
+            out.append(value[n]/factor).append("+-").append(uncertainty[n]/factor);
+        }
+
+        if(value.length > printedElements){
+            out.append(", ... ").append(value.length).append(" values");
+        }
+
+        return out.append("] ").append(name).toString();
+    }
+
+    /**
+     * Parses a series: values separated by commas, in square brackets, with optional units after the brackets
+     * that apply to every value: {@code [1.5+-0.1,2.5+-0.1]m/s} or {@code [1m,20cm,300mm]}.
+     *
+     * Each value is written the same way as a single value, and all of them must have the same dimensions.
+     *
+     * @param series the string to parse
+     * @return the series
+     */
+    public static UncertainSeries parse(String series){
+
+        int close = series.lastIndexOf(']');
+
+        if(!series.startsWith("[") || close < 2){
+            throw new IllegalArgumentException("Could not parse series:" + series);
+        }
+
+        Units shared = Units.parse(series.substring(close + 1));
+
+        int length = 1;
+
+        for(int n = 1; n < close; n++){
+            if(series.charAt(n) == ',') length++;
+        }
+
+        double[] value = new double[length];
+        double[] uncertainty = new double[length];
+        Units units = null;
+
+        for(int n = 0, start = 1; n < length; n++){
+
+            int end = series.indexOf(',', start);
+
+            if(end < 0 || end > close) end = close;
+
+            UncertainValue element = UncertainValue.parse(series.substring(start, end));
+
+            if(units == null){
+                units = element.units;
+            }else if(!units.equals(element.units)){
+                throw new IllegalArgumentException("The values in a series must all have the same units:" + series);
+            }
+
+            value[n] = element.value * shared.getFactor();
+            uncertainty[n] = element.uncertainty * shared.getFactor();
+            start = end + 1;
+        }
+
+        return new UncertainSeries(value, uncertainty, Units.multiply(units, shared));
+    }
+}
@@ -20,14 +20,11 @@
 
 package jehand.physicalc;
 
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-
 /**
  * Class representing a physical quantity, with uncertainty and units.
  */
 
-public class UncertainValue {
+public class UncertainValue implements Quantity {
 
     /**
      * The value of the quantity.
@@ -116,7 +113,7 @@ public class UncertainValue {
      */
     public UncertainValue multiply(UncertainValue other){
 
-        return new UncertainValue(value * other.value, (uncertainty/value + other.uncertainty/other.value) * value * other.value, Units.multiply(units, other.units), false, true);
+        return new UncertainValue(value * other.value, productUncertainty(value, uncertainty, other.value, other.uncertainty), Units.multiply(units, other.units), false, true);
     }
 
     /**
@@ -127,7 +124,7 @@ public class UncertainValue {
      */
     public UncertainValue divide(UncertainValue other){
 
-        return new UncertainValue(value / other.value, (uncertainty/value + other.uncertainty/other.value) * value / other.value, Units.divide(units, other.units), false, true);
+        return new UncertainValue(value / other.value, quotientUncertainty(value, uncertainty, other.value, other.uncertainty), Units.divide(units, other.units), false, true);
     }
 
     /**
@@ -140,7 +137,56 @@ public class UncertainValue {
 
         double outValue = Math.pow(value, power);
 
-        return new UncertainValue(outValue, uncertainty * power * outValue / value, Units.power(units, power), false, true);
+        return new UncertainValue(outValue, powerUncertainty(value, uncertainty, power, outValue), Units.power(units, power), false, true);
+    }
+
+    public Quantity add(Quantity other){
+
+        if(other instanceof UncertainValue) return add((UncertainValue) other);
+
+        return UncertainSeries.combine(this, other, UncertainSeries.ADD);
+    }
+
+    public Quantity subtract(Quantity other){
+
+        if(other instanceof UncertainValue) return subtract((UncertainValue) other);
+
+        return UncertainSeries.combine(this, other, UncertainSeries.SUBTRACT);
+    }
+
+    public Quantity multiply(Quantity other){
+
+        if(other instanceof UncertainValue) return multiply((UncertainValue) other);
+
+        return UncertainSeries.combine(this, other, UncertainSeries.MULTIPLY);
+    }
+
+    public Quantity divide(Quantity other){
+
+        if(other instanceof UncertainValue) return divide((UncertainValue) other);
+
+        return UncertainSeries.combine(this, other, UncertainSeries.DIVIDE);
+    }
+
+    public Units getUnits(){
+        return units;
+    }
+
+    /*
+     * The uncertainty rules, shared with UncertainSeries so a series gives exactly the same results as its elements
+     * would on their own.
+     */
+
+    static double productUncertainty(double a, double aUncertainty, double b, double bUncertainty){
+        return (aUncertainty/a + bUncertainty/b) * a * b;
+    }
+
+    static double quotientUncertainty(double a, double aUncertainty, double b, double bUncertainty){
+        return (aUncertainty/a + bUncertainty/b) * a / b;
+    }
+
+    static double powerUncertainty(double a, double aUncertainty, int power, double result){
+        return aUncertainty * power * result / a;
     }
 
     /**
@@ -150,17 +196,9 @@ public class UncertainValue {
      */
     public String toString(){
 
-        String unitString = units.toString();
-
-        String[] unitSplit = unitString.split("_");
+        double factor = units.getDisplayFactor();
 
-        double factor = 1;
-
-        if(unitSplit.length > 1){
-            factor = Double.parseDouble(unitSplit[1]);
-        }
-
-        return (value/factor) + "+-" + (uncertainty/factor) + " " + unitSplit[0];
+        return new StringBuilder(48).append(value/factor).append("+-").append(uncertainty/factor).append(' ').append(units.getDisplayName()).toString();
     }
 
     /**
@@ -171,58 +209,156 @@ public class UncertainValue {
      */
     public String toString(String units){
 
-        Units u = Units.parse(units);
-
-        if(!u.equals(this.units)){
-            throw new IllegalArgumentException("Can not convert to incompatible units:" + u);
-        }
-
-        return (value/u.getFactor()) + "+-" + (uncertainty/u.getFactor()) + " " + units;
+        return Conversion.to(units).format(this);
     }
 
-    private static final String parseRegex = "(-?[0-9.]+)(?:(?:[x*]10\\^|E)(-?[0-9]+))?(?:(?:\\+-|±)([0-9.]+)(?:(?:[x*]10\\^|E)(-?[0-9]+))?)?([a-zA-Z0-9/^]*)";
-
     /**
      * Parses a string into an uncertain value.
      *
      * Formatting is quite flexible, see "help number formatting" for more information.
      *
+     * The grammar is value, optional exponent, optional uncertainty with its own optional exponent, then units:
+     * {@code -1.5E3+-2x10^1m/s}. Exponents are written as E, x10^ or *10^ and uncertainties as +- or ±.
+     * The string is read in one pass, and numbers are converted without copying them out of the string.
+     *
      * @param value the string to parse
      * @return the
      */
     public static UncertainValue parse(String value){
 
-        Pattern pat = Pattern.compile(parseRegex);
+        long start = Metrics.start();
 
-        Matcher match = pat.matcher(value);
-
-        if(!match.matches()){
-            throw new IllegalArgumentException("Could not parse number:" + value);
+        try {
+            return parseUntimed(value);
+        }finally{
+            Metrics.stop(Metrics.instance.valueParse, start);
         }
+    }
 
-        String[] parts = new String[5];
+    private static UncertainValue parseUntimed(String value){
 
-        for(int n = 1; n < 6; n++){
-            parts[n-1] = match.group(n);
+        int length = value.length();
+
+        // find where each part is, then check the whole string before converting any numbers
+        int valueEnd = value.startsWith("-") ? 1 : 0;
+
+        while(valueEnd < length && isDecimalChar(value.charAt(valueEnd))) valueEnd++;
+
+        if(valueEnd == 0 || value.charAt(valueEnd - 1) == '-'){
+            throw new IllegalArgumentException(notANumber(value));
         }
 
-        if(parts[1] == null){
-            parts[1] = "0";
+        int valueExponentEnd = exponentEnd(value, valueEnd);
+        int n = valueExponentEnd > 0 ? valueExponentEnd : valueEnd;
+
+        int uncertaintyStart = value.startsWith("+-", n) ? n + 2 : value.startsWith("±", n) ? n + 1 : -1;
+        int uncertaintyEnd = uncertaintyStart;
+        int uncertaintyExponentEnd = -1;
+
+        if(uncertaintyStart > 0){
+
+            while(uncertaintyEnd < length && isDecimalChar(value.charAt(uncertaintyEnd))) uncertaintyEnd++;
+
+            if(uncertaintyEnd > uncertaintyStart){
+                uncertaintyExponentEnd = exponentEnd(value, uncertaintyEnd);
+                n = uncertaintyExponentEnd > 0 ? uncertaintyExponentEnd : uncertaintyEnd;
+            }else{
+                uncertaintyStart = -1;
+            }
         }
-        if(parts[2] == null){
-            parts[2] = "0";
+
+        for(int c = n; c < length; c++){
+
+            if(!isUnitChar(value.charAt(c))){
+                throw new IllegalArgumentException("Could not parse number:" + value);
+            }
         }
-        if(parts[3] == null){
-            parts[3] = "0";
+
+        double number = DecimalParser.parseDecimal(value, 0, valueEnd);
+
+        if(valueExponentEnd > 0){
+            number *= DecimalParser.powerOfTen(DecimalParser.parseInt(value, exponentStart(value, valueEnd), valueExponentEnd));
         }
-        if(parts[4] == null){
-            parts[4] = "1";
+
+        double uncertainty = 0;
+
+        if(uncertaintyStart > 0){
+
+            uncertainty = DecimalParser.parseDecimal(value, uncertaintyStart, uncertaintyEnd);
+
+            if(uncertaintyExponentEnd > 0){
+                uncertainty *= DecimalParser.powerOfTen(DecimalParser.parseInt(value, exponentStart(value, uncertaintyEnd), uncertaintyExponentEnd));
+            }
         }
 
-        double number = Double.parseDouble(parts[0]) * Math.pow(10, Integer.parseInt(parts[1]));
-        double uncertainty = Double.parseDouble(parts[2]) * Math.pow(10, Integer.parseInt(parts[3]));
-        Units units = Units.parse(parts[4]);
+        Units units = Units.parse(n == length ? "" : value.substring(n));
 
         return new UncertainValue(number, uncertainty, units);
     }
-}
\ No newline at end of file
+
+    /**
+     * Checks whether a string starts the way a number must, which is the first thing {@link #parse(String)} checks.
+     * Names of labels and locks usually don't, and checking first saves throwing an exception for each one.
+     *
+     * @param value the string
+     * @return false if parse would fail with {@link #notANumber(String)}'s message
+     */
+    static boolean startsLikeNumber(String value){
+
+        int start = value.startsWith("-") ? 1 : 0;
+
+        return start < value.length() && isDecimalChar(value.charAt(start));
+    }
+
+    static String notANumber(String value){
+        return "Could not parse number:" + value;
+    }
+
+    private static boolean isDecimalChar(char c){
+        return (c >= '0' && c <= '9') || c == '.';
+    }
+
+    private static boolean isUnitChar(char c){
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '/' || c == '^';
+    }
+
+    /**
+     * Finds where the digits of an exponent start.
+     *
+     * @param value the string
+     * @param n the start of the exponent marker
+     * @return the index after the marker, or -1 if there isn't one
+     */
+    private static int exponentStart(String value, int n){
+
+        if(value.startsWith("E", n)) return n + 1;
+
+        if(value.startsWith("x10^", n) || value.startsWith("*10^", n)) return n + 4;
+
+        return -1;
+    }
+
+    /**
+     * Finds the end of an exponent.
+     *
+     * @param value the string
+     * @param n the start of the exponent marker
+     * @return the index after the exponent, or -1 if there isn't a complete exponent
+     */
+    private static int exponentEnd(String value, int n){
+
+        int start = exponentStart(value, n);
+
+        if(start < 0) return -1;
+
+        int end = start;
+
+        if(end < value.length() && value.charAt(end) == '-') end++;
+
+        int digits = end;
+
+        while(end < value.length() && value.charAt(end) >= '0' && value.charAt(end) <= '9') end++;
+
+        return end == digits ? -1 : end;
+    }
+}
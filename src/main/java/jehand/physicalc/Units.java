@@ -21,8 +21,7 @@
 package jehand.physicalc;
 
 import java.util.*;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * Class that represents the units of a quantity.
@@ -33,60 +32,101 @@ public class Units {
     /**
      * Basic Units used to represent all others (with a few exceptions).
      */
-    private static final String[] baseUnits = {"m", "g", "s", "A", "K", "cd"};
+    private static final String[] baseUnits = {"m", "g", "s", "A", "K", "cd", "mol", "rad"};
 
     /**
      * List of all metric units. Only these will be used by default to print out values.
      */
     private static final Map<String, Units> standardUnits = new HashMap<>();
 
+    /**
+     * The metric units, indexed by dimensions. Where two have the same dimensions, the first in standardUnits wins.
+     */
+    private static final Map<Long, Units> standardUnitsByDimensions = new HashMap<>();
+
+    /**
+     * The abbreviations of the units in standardUnitsByDimensions.
+     */
+    private static final Map<Long, String> standardNamesByDimensions = new HashMap<>();
+
     /**
      * List of all units supported.
      */
     private static final Map<String, Units> allUnits = new HashMap<>();
 
     /**
-     * Table of all units with information. Currently inaccessible.
+     * Prefix tree of all unit abbreviations, used to find the units starting at each point of a string.
      */
-    public static final String unitDescriptions;
+    private static final TrieNode unitTrie = new TrieNode();
 
     /**
-     * Regex with all unit abbreviations.
+     * Parsed unit strings, so repeated units skip parsing.
      */
-    private static final String unitMatch;
+    private static final BoundedCache<String, Units> parsedUnits = new BoundedCache<>(4096);
 
-    // Initialize unit lists, descriptions, and matcher from units.txt file.
+    /**
+     * Table of shared Units objects. Slots are filled once and never replaced, so lookups need no locking.
+     */
+    private static final AtomicReferenceArray<Units> internedUnits = new AtomicReferenceArray<>(4096);
+
+    private static final int internProbes = 8;
+
+    // Initialize unit lists and matcher from the unit tables.
     static {
 
-        String[][] units = ResourceLoader.loadCSVObjectFormat("/assets/units.txt");
+        Tables tables = Tables.instance();
 
-        StringBuilder descriptions = new StringBuilder();
-        descriptions.append("\n" + String.format("%25s  %-15s%s", "Name:", "Abbreviation:", "Description:"));
+        for(int n = 0; n < tables.unitAbbreviations.length; n++){
 
-        StringBuilder match = new StringBuilder();
+            addUnit(tables.unitAbbreviations[n], tables.unitDimensions[n], tables.unitFactors[n], tables.unitMetric[n]);
+            unitTrie.add(tables.unitAbbreviations[n], n);
+        }
 
-        for(int n = 0; n < units.length; n++){
+        for(Map.Entry<String, Units> standard : standardUnits.entrySet()){
 
-            addUnit(units[n][0], Integer.parseInt(units[n][3]), Double.parseDouble(units[n][4]), units[n][5].equals("T"));
-            descriptions.append("\n" + String.format("%25s  %-15s%s", units[n][1], units[n][0], units[n][2]));
-            match.append("|" + units[n][0]);
+            if(standardUnitsByDimensions.putIfAbsent(standard.getValue().dimensions, standard.getValue()) == null){
+                standardNamesByDimensions.put(standard.getValue().dimensions, standard.getKey());
+            }
         }
+    }
 
-        unitDescriptions = descriptions.toString();
-        unitMatch = match.substring(1);
+    /**
+     * @return the table of all units shown by "list units", built the first time it is asked for
+     */
+    static String descriptions(){
+        return Descriptions.table;
+    }
+
+    private static final class Descriptions {
+
+        private static final String table;
+
+        static {
+
+            Tables tables = Tables.instance();
+
+            StringBuilder descriptions = new StringBuilder();
+            descriptions.append("\n" + String.format("%25s  %-15s%s", "Name:", "Abbreviation:", "Description:"));
+
+            for(int n = 0; n < tables.unitAbbreviations.length; n++){
+                descriptions.append("\n" + String.format("%25s  %-15s%s", tables.unitNames[n], tables.unitAbbreviations[n], tables.unitDescriptions[n]));
+            }
+
+            table = descriptions.toString();
+        }
     }
 
     /**
      * Adds specified unit to lists.
      *
      * @param abr the abbreviation used in the program
-     * @param value the actual dimensions being used
+     * @param dimensions the actual dimensions being used
      * @param factor the ration between this unit and the MGS standard unit of the same type
      * @param isMetric Should this be added to the metric units list?
      */
-    private static void addUnit(String abr, int value, double factor, boolean isMetric){
+    private static void addUnit(String abr, long dimensions, double factor, boolean isMetric){
 
-        Units u = new Units(value, factor);
+        Units u = of(dimensions, factor);
 
         allUnits.put(abr, u);
 
@@ -98,30 +138,82 @@ public class Units {
     /**
      * The dimensions being represented.
      *
-     * Each digit is the power of the corresponding dimension, offset by 5.
+     * Each byte holds the signed power of the corresponding base unit, with the lowest byte for meters. The long is the
+     * sum of power * 256^n, so negative powers borrow from the next byte, and multiplying or dividing units is just
+     * adding or subtracting their dimensions.
      *
-     * For example, the least significant digit represents meters, so area (meters-squared) has a value of 555557.
+     * For example, area (meters-squared) is 2 and velocity (meters per second) is 1 - 65536.
      *
-     * Powers above 4 and below -5 can't be represented and won't display properly.
+     * Powers from -128 to 127 can be represented, and unit arithmetic that goes outside that range is rejected.
      */
-    private int value;
+    final long dimensions;
 
     /**
      * The ration between this unit and the standard MGS unit for the quantity being represented.
      *
      * For example, feet have a factor of 0.3048 because one foot is equivalent to 0.3048 meters, the standard MGS unit for length.
      */
-    private double factor;
+    final double factor;
+
+    /**
+     * The name returned by {@link #getDisplayName()}, worked out on first use.
+     */
+    private volatile String displayName;
+
+    /**
+     * The factor returned by {@link #getDisplayFactor()}, set before displayName.
+     */
+    private double displayFactor;
 
     public double getFactor(){
         return factor;
     }
 
-    private Units(int value, double factor){
-        this.value = value;
+    private Units(long dimensions, double factor){
+        this.dimensions = dimensions;
         this.factor = factor;
     }
 
+    /**
+     * Gets a Units object for some dimensions and factor, reusing a shared one when possible.
+     *
+     * Units are interned in a fixed-size table, so the results of common unit arithmetic don't allocate. When the
+     * slots for a combination are all taken by others, a new unshared object is returned.
+     *
+     * @param dimensions the packed dimensions
+     * @param factor the factor
+     * @return the Units object
+     */
+    static Units of(long dimensions, double factor){
+
+        long factorBits = Double.doubleToLongBits(factor);
+        long hash = (dimensions ^ factorBits) * 0x9E3779B97F4A7C15L;
+        int mask = internedUnits.length() - 1;
+        int slot = (int) (hash >>> 40) & mask;
+
+        for(int n = 0; n < internProbes; n++, slot = (slot + 1) & mask){
+
+            Units u = internedUnits.get(slot);
+
+            if(u == null){
+
+                Units created = new Units(dimensions, factor);
+
+                if(internedUnits.compareAndSet(slot, null, created)){
+                    return created;
+                }
+
+                u = internedUnits.get(slot);
+            }
+
+            if(u.dimensions == dimensions && Double.doubleToLongBits(u.factor) == factorBits){
+                return u;
+            }
+        }
+
+        return new Units(dimensions, factor);
+    }
+
     /**
      * Multiplies two units together.
      *
@@ -130,7 +222,7 @@ public class Units {
      * @return the product
      */
     public static Units multiply(Units a, Units b){
-        return new Units(a.value + b.value - 555555, a.factor * b.factor);
+        return of(combine(a.dimensions, b.dimensions, 1), a.factor * b.factor);
     }
 
     /**
@@ -141,7 +233,7 @@ public class Units {
      * @return the quotient
      */
     public static Units divide(Units a, Units b){
-        return new Units(a.value - b.value + 555555, a.factor / b.factor);
+        return of(combine(a.dimensions, b.dimensions, -1), a.factor / b.factor);
     }
 
     /**
@@ -152,13 +244,48 @@ public class Units {
      * @return the result
      */
     public static Units power(Units a, int power){
-        return new Units((a.value - 555555)*power + 555555, Math.pow(a.factor, power));
+        return of(combine(0, a.dimensions, power), Math.pow(a.factor, power));
+    }
+
+    /**
+     * Works out the dimensions a + b * power, one base unit at a time.
+     *
+     * Packed powers carry into the next byte when they overflow, so the sum is worked out per base unit and checked
+     * before being packed again.
+     *
+     * @param a the first dimensions
+     * @param b the second dimensions
+     * @param power the power to raise b to
+     * @return the combined dimensions
+     * @throws IllegalArgumentException if any power is outside -128 to 127
+     */
+    static long combine(long a, long b, int power){
+
+        long result = 0;
+
+        for(int n = 0; n < baseUnits.length; n++){
+
+            int powerA = (byte) a;
+            int powerB = (byte) b;
+            a = (a - powerA) >> 8;
+            b = (b - powerB) >> 8;
+
+            long combined = powerA + (long) powerB * power;
+
+            if(combined < Byte.MIN_VALUE || combined > Byte.MAX_VALUE){
+                throw new IllegalArgumentException("Unit powers must be between " + Byte.MIN_VALUE + " and " + Byte.MAX_VALUE + ".");
+            }
+
+            result += combined << (8 * n);
+        }
+
+        return result;
     }
 
     /**
      * Is this unit equal to the other.
      *
-     * Two units are considered equal if the have the same value, but not necessarily the same factor.
+     * Two units are considered equal if the have the same dimensions, but not necessarily the same factor.
      *
      * @param other the other unit
      * @return Are they equal?
@@ -169,7 +296,11 @@ public class Units {
 
         Units otherUnits = (Units) other;
 
-        return value == otherUnits.value;
+        return dimensions == otherUnits.dimensions;
+    }
+
+    public int hashCode(){
+        return Long.hashCode(dimensions);
     }
 
     private static final char[] multipliers  = {'p', '?', '?', 'n', '?', '?', 'μ', '?', '?', 'm', 'c', 'd', '-', 'D', 'h', 'k', ' ', ' ', 'M', ' ', ' ', 'G', '?', '?', 'T'};
@@ -179,19 +310,55 @@ public class Units {
     /**
      * Parses a string into a Units object.
      *
+     * Results are cached, so parsing the same string again is a lookup.
+     *
      * @param units the string to parse
      * @return the Units object
      */
     public static Units parse(String units){
+        return parsedUnits.get(units, Units::parseTimed);
+    }
+
+    private static Units parseTimed(String units){
+
+        long start = Metrics.start();
+
+        try {
+            return parseUncached(units);
+        }finally{
+            Metrics.stop(Metrics.instance.unitsParse, start);
+        }
+    }
+
+    static long parseCacheHits(){
+        return parsedUnits.hits();
+    }
+
+    static long parseCacheMisses(){
+        return parsedUnits.misses();
+    }
+
+    /**
+     * Parses a string into a Units object without the cache.
+     *
+     * Each side of the slash is split into elements of an optional prefix, a unit, and an optional power. Elements are
+     * taken off the end one at a time, each time choosing the same split the original regex matcher chose: the first
+     * complete split when prefixes are tried before no prefix, units in the order of units.txt, and powers before no
+     * power. This keeps ambiguous strings such as "mins" (milli-inch seconds) parsing as they always have.
+     *
+     * @param units the string to parse
+     * @return the Units object
+     */
+    private static Units parseUncached(String units){
 
         if(units.equals("")){
             units = " ";
         }
 
-        int value = 555555;
+        long dimensions = 0;
         double factor = 1;
 
-        units = units.replaceAll(" ", "");
+        units = units.replace(" ", "");
 
         String[] nd = units.split("/");
 
@@ -199,8 +366,6 @@ public class Units {
             throw new IllegalArgumentException("Units contain multiple slashes (/).");
         }
 
-        Pattern pattern = Pattern.compile("(([" + multiplierMatch + "]?)(" + unitMatch + ")(?:\\^([2-9]))?)*");
-
         for(int n = 0; n < nd.length; n++){
             
             if(nd[n].equals("1")){
@@ -209,47 +374,215 @@ public class Units {
 
             String remainingUnits = nd[n];
 
-            while(remainingUnits.length() > 0){
+            Element[][] elements = findElements(remainingUnits);
 
-                Matcher matcher = pattern.matcher(remainingUnits);
+            int end = remainingUnits.length();
 
-                if(!matcher.matches()){
-                    throw new IllegalArgumentException("Can't parse units \"" + units + "\"");
-                }
-
-                String unitElement = matcher.group(1);
-
-                String prefix = matcher.group(2);
-                String unit = matcher.group(3);
-                String power = matcher.group(4);
+            while(end > 0){
 
-                if(prefix.equals("")){
-                    prefix = "-";
-                }
+                Element element = lastElement(elements, end);
 
-                if(power == null){
-                    power = "1";
+                if(element == null){
+                    throw new IllegalArgumentException("Can't parse units \"" + units + "\"");
                 }
 
                 int i = 0;
 
-                for(; multipliers[i] != prefix.charAt(0); i++);
+                for(; multipliers[i] != element.prefix; i++);
 
 
-                int powerInt = Integer.parseInt(power) * (1 - 2 * n);
+                int powerInt = element.power * (1 - 2 * n);
                 float prefixPowerInt = (i + FACTOR_OFFSET);
 
-                Units unitObj = allUnits.get(unit);
+                Units unitObj = element.unit;
 
-                value += powerInt * (unitObj.value - 555555);
+                dimensions = combine(dimensions, unitObj.dimensions, powerInt);
 
                 factor *= Math.pow(unitObj.factor * Math.pow(10, prefixPowerInt), powerInt);
 
-                remainingUnits = remainingUnits.substring(0, remainingUnits.length() - unitElement.length());
+                end = element.start;
+            }
+        }
+
+        return of(dimensions, factor);
+    }
+
+    /**
+     * Finds every element that could start at each point of a string, in the order the regex matcher tried them.
+     *
+     * @param units the string, with no slashes
+     * @return the elements starting at each index
+     */
+    private static Element[][] findElements(String units){
+
+        Element[][] elements = new Element[units.length()][];
+        List<Element> found = new ArrayList<>();
+
+        for(int start = 0; start < units.length(); start++){
+
+            char first = units.charAt(start);
+
+            if(multiplierMatch.indexOf(first) >= 0){
+                unitTrie.find(units, start, start + 1, first, found);
+            }
+
+            unitTrie.find(units, start, start, '-', found);
+
+            elements[start] = found.toArray(new Element[0]);
+            found.clear();
+        }
+
+        return elements;
+    }
+
+    /**
+     * Finds the last element of the first complete split of the start of a string.
+     *
+     * @param elements the elements starting at each index
+     * @param end the end of the part of the string to split
+     * @return the element, or null if the part can't be split into elements
+     */
+    private static Element lastElement(Element[][] elements, int end){
+
+        // complete[i] is true if the string from i to end can be split into elements
+        boolean[] complete = new boolean[end + 1];
+        complete[end] = true;
+
+        for(int start = end - 1; start >= 0; start--){
+            complete[start] = firstCompleting(elements[start], complete, end) != null;
+        }
+
+        if(!complete[0]) return null;
+
+        Element last = null;
+
+        for(int start = 0; start < end; start = last.end){
+            last = firstCompleting(elements[start], complete, end);
+        }
+
+        return last;
+    }
+
+    private static Element firstCompleting(Element[] elements, boolean[] complete, int end){
+
+        for(Element element : elements){
+
+            if(element.end <= end && complete[element.end]){
+                return element;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * A prefix, unit, and power found in a unit string.
+     */
+    private static final class Element {
+
+        final int start;
+        final int end;
+        final char prefix;
+        final Units unit;
+        final int power;
+
+        /**
+         * The position of the unit in units.txt.
+         */
+        final int order;
+
+        Element(int start, int end, char prefix, Units unit, int power, int order){
+            this.start = start;
+            this.end = end;
+            this.prefix = prefix;
+            this.unit = unit;
+            this.power = power;
+            this.order = order;
+        }
+    }
+
+    /**
+     * A node in the prefix tree of unit abbreviations.
+     */
+    private static final class TrieNode {
+
+        private char[] keys = new char[0];
+        private TrieNode[] children = new TrieNode[0];
+
+        /**
+         * The abbreviation ending at this node, or null.
+         */
+        private String unit;
+
+        /**
+         * The position of the abbreviation's first line in units.txt.
+         */
+        private int order;
+
+        void add(String abbreviation, int order){
+
+            TrieNode node = this;
+
+            for(int n = 0; n < abbreviation.length(); n++){
+                node = node.child(abbreviation.charAt(n), true);
+            }
+
+            if(node.unit == null){
+                node.unit = abbreviation;
+                node.order = order;
+            }
+        }
+
+        private TrieNode child(char key, boolean create){
+
+            for(int n = 0; n < keys.length; n++){
+                if(keys[n] == key) return children[n];
             }
+
+            if(!create) return null;
+
+            keys = Arrays.copyOf(keys, keys.length + 1);
+            children = Arrays.copyOf(children, children.length + 1);
+            keys[keys.length - 1] = key;
+
+            return children[children.length - 1] = new TrieNode();
         }
 
-        return new Units(value, factor);
+        /**
+         * Adds the elements made of a prefix and each unit starting at an index, in units.txt order, with the
+         * element including a following power before the one without.
+         *
+         * @param units the string
+         * @param start the start of the element
+         * @param from the start of the unit
+         * @param prefix the prefix, or '-' for none
+         * @param found the list to add to
+         */
+        void find(String units, int start, int from, char prefix, List<Element> found){
+
+            int first = found.size();
+
+            TrieNode node = this;
+
+            for(int n = from; n < units.length() && (node = node.child(units.charAt(n), false)) != null; n++){
+
+                if(node.unit == null) continue;
+
+                Units unit = allUnits.get(node.unit);
+
+                int position = first;
+
+                while(position < found.size() && found.get(position).order < node.order) position++;
+
+                int end = n + 1;
+
+                if(end + 1 < units.length() && units.charAt(end) == '^' && units.charAt(end + 1) >= '2' && units.charAt(end + 1) <= '9'){
+                    found.add(position++, new Element(start, end + 2, prefix, unit, units.charAt(end + 1) - '0', node.order));
+                }
+
+                found.add(position, new Element(start, end, prefix, unit, 1, node.order));
+            }
+        }
     }
 
     /**
@@ -261,56 +594,96 @@ public class Units {
      */
     public String toString(){
 
-        for (String unit : standardUnits.keySet()) {
+        String name = getDisplayName();
 
-            if(this.equals(standardUnits.get(unit))){
+        if(standardUnitsByDimensions.containsKey(dimensions)){
+            return name + "_" + getDisplayFactor();
+        }
 
-                return unit + "_" + (standardUnits.get(unit).factor) + "";
-            }
+        return name;
+    }
+
+    /**
+     * Gets the name values with these dimensions are printed in.
+     *
+     * This is the standard unit with these dimensions if there is one, otherwise the base units.
+     *
+     * @return the name
+     */
+    String getDisplayName(){
+
+        String name = displayName;
+
+        if(name == null){
+
+            Units standard = standardUnitsByDimensions.get(dimensions);
+
+            displayFactor = standard == null ? 1 : standard.factor;
+            displayName = name = buildDisplayName();
         }
 
-        String nUnits = "";
-        String dUnits = "";
+        return name;
+    }
 
-        for(int n = 0; n < 6; n++){
+    /**
+     * Gets the factor of the unit values with these dimensions are printed in.
+     *
+     * @return the factor
+     */
+    double getDisplayFactor(){
 
-            int signedPower = getUnitPower(n);
-            int power = Math.abs(signedPower);
+        // reading displayName first makes the factor written before it visible
+        if(displayName == null){
+            getDisplayName();
+        }
 
-            if(signedPower > 0){
+        return displayFactor;
+    }
 
-                nUnits += baseUnits[n];
+    private String buildDisplayName(){
 
-                if(power > 1)
-                    nUnits += "^" + power;
+        String standard = standardNamesByDimensions.get(dimensions);
 
-            } else if(signedPower < 0){
+        if(standard != null){
+            return standard;
+        }
 
-                dUnits += baseUnits[n];
+        StringBuilder nUnits = new StringBuilder();
+        StringBuilder dUnits = new StringBuilder();
+
+        long remaining = dimensions;
+
+        for(int n = 0; n < baseUnits.length; n++){
+
+            // take the signed power out of the low byte, then remove it so any borrow is undone
+            int signedPower = (byte) remaining;
+            remaining = (remaining - signedPower) >> 8;
+            int power = Math.abs(signedPower);
+
+            StringBuilder units = signedPower > 0 ? nUnits : dUnits;
+
+            if(signedPower != 0){
+
+                units.append(baseUnits[n]);
 
                 if(power > 1)
-                    dUnits += "^" + power;
+                    units.append('^').append(power);
             }
         }
 
-        if(nUnits.equals("")){
-            nUnits = "1 ";
-        }
-
-        if(dUnits.equals("")){
+        if(nUnits.length() == 0){
 
-            if(nUnits.equals("1 ")){
+            if(dUnits.length() == 0){
                 return "";
             }
 
-            return nUnits;
+            nUnits.append("1 ");
         }
 
-        return nUnits + "/" + dUnits;
-    }
-
-    private int getUnitPower(int n){
+        if(dUnits.length() == 0){
+            return nUnits.toString();
+        }
 
-        return ((value / (int)Math.pow(10, n)) % 10) - 5;
+        return nUnits.append('/').append(dUnits).toString();
     }
 }
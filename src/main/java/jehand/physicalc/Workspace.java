@@ -0,0 +1,451 @@
+/*
+ *  Copyright ©, 2020, Joseph E. Hand
+ *
+ *  This file is part of PhysiCalc.
+ *
+ *  PhysiCalc is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  PhysiCalc is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with PhysiCalc.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package jehand.physicalc;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.UnaryOperator;
+
+/**
+ * The labels and locks of a session, with cached lock results.
+ *
+ * A lock's result is kept until something it depends on changes. Dependencies are tracked by name, using the names
+ * each lock's expression reads, so a label that is created after a lock referencing it still invalidates the lock.
+ * "ans" is tracked like any other name.
+ *
+ * Everything is held in an immutable {@link Snapshot} made of {@link PersistentMap}s. A change builds a new snapshot
+ * that shares most of the old one and publishes it atomically, so an evaluation reads one consistent snapshot without
+ * locking, and is never blocked by changes or other evaluations. Changes are made one at a time, so they reach the
+ * journal in the order they are published. This lets several sessions share one workspace, each with its own "ans";
+ * since their answers differ, locks in a shared workspace can't read "ans".
+ */
+
+class Workspace {
+
+    private final AtomicReference<Snapshot> current;
+
+    /**
+     * Is this workspace used by more than one session.
+     */
+    private volatile boolean shared;
+
+    /**
+     * Where changes are saved, or null if they aren't.
+     */
+    private Journal journal;
+
+    /**
+     * The results of expressions evaluated on this workspace.
+     */
+    final ResultCache results = new ResultCache();
+
+    Workspace(){
+        this.current = new AtomicReference<>(Snapshot.empty);
+    }
+
+    private Workspace(Snapshot snapshot){
+        this.current = new AtomicReference<>(snapshot);
+    }
+
+    /**
+     * Copies the labels, locks and cached lock results into a new workspace that isn't saved or shared. The copy
+     * shares the current snapshot, so it takes constant time.
+     *
+     * @return the copy
+     */
+    Workspace copy(){
+        return new Workspace(current.get());
+    }
+
+    /**
+     * @return the labels, locks and cached results as they are now, which never change
+     */
+    Snapshot snapshot(){
+        return current.get();
+    }
+
+    synchronized void setJournal(Journal journal){
+        this.journal = journal;
+    }
+
+    /**
+     * @return the error that stopped changes from being saved, or null if they are being saved or never were
+     */
+    synchronized IOException saveFailure(){
+        return journal == null ? null : journal.failure();
+    }
+
+    /**
+     * Lets more than one session use this workspace, which stops locks from reading "ans".
+     *
+     * @throws IllegalArgumentException if a lock already reads "ans"
+     */
+    synchronized void share(){
+
+        if(current.get().dependents.containsKey("ans")){
+            throw new IllegalArgumentException("Locks that read ans can't be shared, clear them first");
+        }
+
+        shared = true;
+    }
+
+    boolean isShared(){
+        return shared;
+    }
+
+    Quantity value(String name){
+        return current.get().value(name);
+    }
+
+    Expression lock(String name){
+        return current.get().lock(name);
+    }
+
+    boolean containsLabel(String name){
+        return current.get().containsLabel(name);
+    }
+
+    boolean containsLock(String name){
+        return current.get().containsLock(name);
+    }
+
+    /**
+     * @return the names of all labels
+     */
+    List<String> labelNames(){
+        return current.get().labelNames();
+    }
+
+    /**
+     * @return the names of all locks
+     */
+    List<String> lockNames(){
+        return current.get().lockNames();
+    }
+
+    /**
+     * Caches the result of a lock evaluated on a snapshot, unless the labels and locks have changed since. Only
+     * results evaluated without errors should be cached.
+     *
+     * @param snapshot the snapshot the lock was evaluated on
+     * @param name the lock
+     * @param result the result
+     */
+    void cacheLock(Snapshot snapshot, String name, Quantity result){
+
+        while(true){
+
+            Snapshot now = current.get();
+
+            if(now.version != snapshot.version || now.lockResults.containsKey(name)) return;
+
+            Snapshot next = new Snapshot(now.version, now.values, now.locks, now.lockResults.put(name, result), now.dependents, now.versions);
+
+            if(current.compareAndSet(now, next)) return;
+        }
+    }
+
+    synchronized void putValue(String name, Quantity value){
+
+        publish((now) -> now.changed(now.values.put(name, value), now.locks, now.dependents, name));
+
+        if(journal != null) journal.putValue(name, value);
+    }
+
+    /**
+     * Locks a name to an expression, unless the lock would read itself.
+     *
+     * @param name the lock name
+     * @param expression the expression
+     * @return the names on the shortest loop, starting and ending with the lock, or null if the lock was set
+     * @throws IllegalArgumentException if the workspace is shared and the expression reads "ans"
+     */
+    synchronized List<String> putLock(String name, Expression expression){
+
+        if(shared && Arrays.asList(expression.names).contains("ans")){
+            throw new IllegalArgumentException("Locks in a shared workspace can't read ans");
+        }
+
+        List<String> loop = findLoop(current.get(), name, expression);
+
+        if(loop != null) return loop;
+
+        publish((now) -> {
+
+            PersistentMap<String, PersistentMap<String, Boolean>> dependents = unlink(now, name);
+
+            for(String dependency : expression.names){
+
+                PersistentMap<String, Boolean> locks = dependents.get(dependency);
+
+                dependents = dependents.put(dependency, (locks == null ? PersistentMap.<String, Boolean>empty() : locks).put(name, Boolean.TRUE));
+            }
+
+            return now.changed(now.values, now.locks.put(name, expression), dependents, name);
+        });
+
+        if(journal != null) journal.putLock(name, expression);
+
+        return null;
+    }
+
+    /**
+     * Checks whether locking a name to an expression would make the lock read itself.
+     *
+     * The search runs backwards from the name through the locks that read it, which is usually far fewer than the
+     * locks the expression reads.
+     *
+     * @return the names on the shortest loop, starting and ending with the lock, or null if there is no loop
+     */
+    private static List<String> findLoop(Snapshot snapshot, String name, Expression expression){
+
+        Set<String> read = new HashSet<>(Arrays.asList(expression.names));
+
+        // for each lock found, the name it reads on the way back to the new lock
+        Map<String, String> reads = new HashMap<>();
+        Deque<String> queue = new ArrayDeque<>();
+        queue.add(name);
+
+        while(!queue.isEmpty()){
+
+            String current = queue.poll();
+
+            if(read.contains(current)){
+
+                List<String> loop = new ArrayList<>();
+                loop.add(name);
+
+                for(String lock = current; !lock.equals(name); lock = reads.get(lock)){
+                    loop.add(lock);
+                }
+
+                loop.add(name);
+
+                return loop;
+            }
+
+            PersistentMap<String, Boolean> readers = snapshot.dependents.get(current);
+
+            if(readers == null) continue;
+
+            for(String reader : readers.keys()){
+
+                if(!reader.equals(name) && reads.putIfAbsent(reader, current) == null){
+                    queue.add(reader);
+                }
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Removes a label or lock.
+     *
+     * @param name the label or lock
+     * @return did it exist
+     */
+    synchronized boolean remove(String name){
+
+        boolean existed = current.get().containsLabel(name) || current.get().containsLock(name);
+
+        publish((now) -> now.changed(now.values.remove(name), now.locks.remove(name), unlink(now, name), name));
+
+        if(existed && journal != null) journal.remove(name);
+
+        return existed;
+    }
+
+    /**
+     * Drops the cached result of a name's lock, if any, and of every lock that depends on it.
+     *
+     * @param name the name that changed
+     */
+    void invalidate(String name){
+
+        Snapshot now = current.get();
+
+        // a name nothing reads, such as "ans" in most workspaces, doesn't need a new snapshot
+        if(!now.lockResults.containsKey(name) && !now.dependents.containsKey(name)) return;
+
+        synchronized(this){
+            publish((snapshot) -> snapshot.changed(snapshot.values, snapshot.locks, snapshot.dependents, name));
+        }
+    }
+
+    /**
+     * Publishes a change, applying it again if a cached result was published since it was built.
+     */
+    private void publish(UnaryOperator<Snapshot> change){
+        current.updateAndGet(change);
+    }
+
+    /**
+     * @return the dependencies without a lock's edges
+     */
+    private static PersistentMap<String, PersistentMap<String, Boolean>> unlink(Snapshot snapshot, String name){
+
+        Expression old = snapshot.locks.get(name);
+        PersistentMap<String, PersistentMap<String, Boolean>> dependents = snapshot.dependents;
+
+        if(old == null) return dependents;
+
+        for(String dependency : old.names){
+
+            PersistentMap<String, Boolean> locks = dependents.get(dependency);
+
+            if(locks == null) continue;
+
+            locks = locks.remove(name);
+            dependents = locks.isEmpty() ? dependents.remove(dependency) : dependents.put(dependency, locks);
+        }
+
+        return dependents;
+    }
+
+    /**
+     * The labels, locks, cached lock results and dependencies of a workspace at one moment.
+     */
+    static final class Snapshot {
+
+        static final Snapshot empty = new Snapshot(0, PersistentMap.empty(), PersistentMap.empty(), PersistentMap.empty(), PersistentMap.empty(), PersistentMap.empty());
+
+        /**
+         * Counts the changes to the labels and locks, but not the results cached since.
+         */
+        private final long version;
+
+        private final PersistentMap<String, Quantity> values;
+
+        private final PersistentMap<String, Expression> locks;
+
+        /**
+         * The last result of each lock that hasn't been invalidated since.
+         */
+        private final PersistentMap<String, Quantity> lockResults;
+
+        /**
+         * For each name, the locks whose expressions read it directly.
+         */
+        private final PersistentMap<String, PersistentMap<String, Boolean>> dependents;
+
+        /**
+         * The version in which each name last changed, for names that have changed.
+         */
+        private final PersistentMap<String, Long> versions;
+
+        private Snapshot(long version, PersistentMap<String, Quantity> values, PersistentMap<String, Expression> locks, PersistentMap<String, Quantity> lockResults, PersistentMap<String, PersistentMap<String, Boolean>> dependents, PersistentMap<String, Long> versions){
+            this.version = version;
+            this.values = values;
+            this.locks = locks;
+            this.lockResults = lockResults;
+            this.dependents = dependents;
+            this.versions = versions;
+        }
+
+        /**
+         * Gets the version in which a name was last set or cleared, which is different after every change to it.
+         *
+         * @param name the label or lock name
+         * @return the version, or 0 if it has never changed
+         */
+        long version(String name){
+
+            Long version = versions.get(name);
+
+            return version == null ? 0 : version;
+        }
+
+        Quantity value(String name){
+            return values.get(name);
+        }
+
+        Expression lock(String name){
+            return locks.get(name);
+        }
+
+        boolean containsLabel(String name){
+            return values.containsKey(name);
+        }
+
+        boolean containsLock(String name){
+            return locks.containsKey(name);
+        }
+
+        List<String> labelNames(){
+            return values.keys();
+        }
+
+        List<String> lockNames(){
+            return locks.keys();
+        }
+
+        /**
+         * Gets the cached result of a lock.
+         *
+         * @param name the lock
+         * @return the result, or null if it needs to be evaluated
+         */
+        Quantity cachedLock(String name){
+            return lockResults.get(name);
+        }
+
+        /**
+         * Makes the next version after a name changed, dropping the cached results of its lock and every lock that
+         * depends on it.
+         *
+         * A lock is only cached after all of the locks it reads are, so the search stops at locks that aren't cached.
+         * The old dependencies are searched, since a changed lock's new expression can't have been cached yet.
+         */
+        private Snapshot changed(PersistentMap<String, Quantity> values, PersistentMap<String, Expression> locks, PersistentMap<String, PersistentMap<String, Boolean>> dependents, String name){
+
+            PersistentMap<String, Quantity> lockResults = this.lockResults;
+
+            // nothing is cached while a workspace is being built or restored
+            if(!lockResults.isEmpty()){
+
+                lockResults = lockResults.remove(name);
+
+                Deque<String> changed = new ArrayDeque<>();
+                changed.push(name);
+
+                while(!changed.isEmpty()){
+
+                    PersistentMap<String, Boolean> readers = this.dependents.get(changed.pop());
+
+                    if(readers == null) continue;
+
+                    for(String lock : readers.keys()){
+
+                        PersistentMap<String, Quantity> without = lockResults.remove(lock);
+
+                        if(without != lockResults){
+                            lockResults = without;
+                            changed.push(lock);
+                        }
+                    }
+                }
+            }
+
+            return new Snapshot(version + 1, values, locks, lockResults, dependents, versions.put(name, version + 1));
+        }
+    }
+}